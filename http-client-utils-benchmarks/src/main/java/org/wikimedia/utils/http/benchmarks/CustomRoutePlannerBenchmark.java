@@ -0,0 +1,110 @@
+package org.wikimedia.utils.http.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.DefaultRoutePlanner;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wikimedia.utils.http.CustomRoutePlanner;
+
+/**
+ * Cost of {@link CustomRoutePlanner#determineRoute} per request.
+ *
+ * Run with the classpath of this module, built with the benchmarks profile,
+ * adding {@code -prof gc} to get the allocation rate:
+ * {@code java -cp ... org.openjdk.jmh.Main CustomRoutePlannerBenchmark -prof gc}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CustomRoutePlannerBenchmark {
+    private static final HttpHost PROXY = HttpHost.create("http://proxy.local:9999");
+
+    @Param({"10", "10000"})
+    int routes;
+
+    private CustomRoutePlanner routePlanner;
+    private HttpHost routedHost;
+    private final HttpHost wildcardHost = new HttpHost("en.wikipedia.org", 443, "https");
+    private final HttpHost pathHost = new HttpHost("www.wikidata.org", 443, "https");
+    private final HttpHost defaultHost = new HttpHost("www.mediawiki.org", 443, "https");
+    private final HttpRequest request = new HttpGet("/wiki/Q42");
+    private final HttpRequest sparqlRequest = new HttpGet("/sparql?query=SELECT");
+
+    @Setup
+    public void setUp() {
+        Map<String, HttpHost> routeMap = new HashMap<>();
+        for (int i = 0; i < routes; i++) {
+            routeMap.put("host" + i + ".test", PROXY);
+        }
+        routeMap.put("*.wikipedia.org", PROXY);
+        routeMap.put("www.wikidata.org", PROXY);
+        routeMap.put("www.wikidata.org/sparql", HttpHost.create("http://query-proxy.local:9999"));
+        routePlanner = new CustomRoutePlanner(routeMap, new DefaultRoutePlanner(DefaultSchemePortResolver.INSTANCE));
+        routedHost = new HttpHost("host" + routes / 2 + ".test", 443, "https");
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        final HttpContext context = new BasicHttpContext();
+        int addedRoutes;
+    }
+
+    @Benchmark
+    public HttpRoute hit(ThreadState state) throws HttpException {
+        return routePlanner.determineRoute(routedHost, request, state.context);
+    }
+
+    @Benchmark
+    public HttpRoute wildcardHit(ThreadState state) throws HttpException {
+        return routePlanner.determineRoute(wildcardHost, request, state.context);
+    }
+
+    @Benchmark
+    public HttpRoute pathHit(ThreadState state) throws HttpException {
+        return routePlanner.determineRoute(pathHost, sparqlRequest, state.context);
+    }
+
+    @Benchmark
+    public HttpRoute missToDefault(ThreadState state) throws HttpException {
+        return routePlanner.determineRoute(defaultHost, request, state.context);
+    }
+
+    @Benchmark
+    @Group("addRoute")
+    @GroupThreads(3)
+    public HttpRoute hitDuringAddRoute(ThreadState state) throws HttpException {
+        return routePlanner.determineRoute(routedHost, request, state.context);
+    }
+
+    @Benchmark
+    @Group("addRoute")
+    @GroupThreads(1)
+    public void addRoute(ThreadState state) {
+        routePlanner.addRoute("added" + state.addedRoutes++ % 100 + ".test", "http://proxy.local:9999");
+    }
+}
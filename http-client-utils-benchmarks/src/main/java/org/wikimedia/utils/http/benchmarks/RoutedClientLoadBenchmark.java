@@ -0,0 +1,118 @@
+package org.wikimedia.utils.http.benchmarks;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.DefaultRoutePlanner;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikimedia.utils.http.CustomRoutePlanner;
+import org.wikimedia.utils.http.LatencyHistogram;
+import org.wikimedia.utils.http.RoutePoolSizer;
+import org.wikimedia.utils.http.RouteTracker;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+
+/**
+ * End to end throughput and latency of an {@link org.apache.http.client.HttpClient}
+ * routed by {@link CustomRoutePlanner} to a local WireMock server.
+ *
+ * Reports the throughput, the p50 and p99 latencies and the bytes allocated
+ * per request by the client threads. Run with the classpath of this module,
+ * built with the benchmarks profile:
+ * {@code java -cp ... org.wikimedia.utils.http.benchmarks.RoutedClientLoadBenchmark [threads] [seconds]}
+ */
+public final class RoutedClientLoadBenchmark {
+    private static final Logger log = LoggerFactory.getLogger(RoutedClientLoadBenchmark.class);
+
+    private RoutedClientLoadBenchmark() {
+    }
+
+    public static void main(String... args) throws IOException, InterruptedException, ExecutionException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+
+        WireMockServer server = new WireMockServer(options().dynamicPort().containerThreads(threads + 8));
+        server.start();
+        server.stubFor(get(urlEqualTo("/wiki/Q42"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("<response>Some content</response>")));
+
+        CustomRoutePlanner routePlanner = new CustomRoutePlanner(
+                CustomRoutePlanner.createMapFromString("www.wikidata.org=" + server.baseUrl()),
+                new DefaultRoutePlanner(DefaultSchemePortResolver.INSTANCE));
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(threads);
+        new RoutePoolSizer(connectionManager, threads).register(routePlanner);
+        RouteTracker tracker = new RouteTracker();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (CloseableHttpClient client = tracker.install(HttpClientBuilder.create()
+                .setRoutePlanner(routePlanner)
+                .setConnectionManager(connectionManager)).build()) {
+            run(client, executor, threads, Math.max(seconds / 3, 1), new LatencyHistogram());
+            LatencyHistogram latency = new LatencyHistogram();
+            long allocated = run(client, executor, threads, seconds, latency);
+            long requests = latency.getCount();
+            log.info("{} threads: {} requests/s, p50 {}us, p99 {}us, {} bytes allocated per request",
+                    threads, requests / seconds,
+                    TimeUnit.NANOSECONDS.toMicros(latency.getValueAtPercentile(50)),
+                    TimeUnit.NANOSECONDS.toMicros(latency.getValueAtPercentile(99)),
+                    requests > 0 ? allocated / requests : 0);
+        } finally {
+            executor.shutdown();
+            server.stop();
+        }
+    }
+
+    /**
+     * @return the bytes allocated by the client threads
+     */
+    private static long run(CloseableHttpClient client, ExecutorService executor, int threads, int seconds,
+                            LatencyHistogram latency) throws InterruptedException, ExecutionException {
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        List<Future<Long>> workers = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            workers.add(executor.submit(() -> {
+                long allocatedBefore = allocatedBytes();
+                while (System.nanoTime() < end) {
+                    long start = System.nanoTime();
+                    try (CloseableHttpResponse response = client.execute(new HttpGet("http://www.wikidata.org/wiki/Q42"))) {
+                        EntityUtils.consume(response.getEntity());
+                    }
+                    latency.record(System.nanoTime() - start);
+                }
+                return allocatedBytes() - allocatedBefore;
+            }));
+        }
+        long allocated = 0;
+        for (Future<Long> worker : workers) {
+            allocated += worker.get();
+        }
+        return allocated;
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
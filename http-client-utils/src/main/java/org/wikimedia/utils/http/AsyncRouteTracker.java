@@ -0,0 +1,134 @@
+package org.wikimedia.utils.http;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Tracks the requests of the async client for a {@link RouteTracker},
+ * which holds the health policy and the listeners shared with classic
+ * clients.
+ *
+ * A request is counted from the moment it is sent until its response
+ * headers are received. The async client has no retry handler nor request
+ * executor to hook into: requests are tracked by interceptors, holding a
+ * small state per request in its context, and failures are observed through
+ * the callback of each request, which must be wrapped by
+ * {@link #track(HttpContext, FutureCallback)}.
+ *
+ * Kept apart from {@link RouteTracker} as httpasyncclient is an optional
+ * dependency.
+ */
+@ParametersAreNonnullByDefault
+public class AsyncRouteTracker implements HttpRequestInterceptor, HttpResponseInterceptor {
+    /**
+     * Context attribute holding the request currently being tracked.
+     */
+    private static final String TRACKED_REQUEST_ATTRIBUTE = "org.wikimedia.utils.http.async-tracked-request";
+
+    private final RouteTracker routeTracker;
+
+    public AsyncRouteTracker(RouteTracker routeTracker) {
+        this.routeTracker = routeTracker;
+    }
+
+    /**
+     * Registers this tracker on the async client builder. Requests must be
+     * executed with a callback wrapped by {@link #track(HttpContext, FutureCallback)}
+     * for failed requests to be released.
+     */
+    @Nonnull
+    public HttpAsyncClientBuilder install(HttpAsyncClientBuilder builder) {
+        return builder
+                .addInterceptorLast((HttpRequestInterceptor) this)
+                .addInterceptorFirst((HttpResponseInterceptor) this);
+    }
+
+    /**
+     * Wraps the callback of an async request so that its failure is tracked.
+     *
+     * @param context the context the request is executed with
+     * @param callback the callback of the request, if any
+     */
+    @Nonnull
+    public <T> FutureCallback<T> track(HttpContext context, @Nullable FutureCallback<T> callback) {
+        return new FutureCallback<T>() {
+            @Override
+            public void completed(T result) {
+                if (callback != null) {
+                    callback.completed(result);
+                }
+            }
+
+            @Override
+            public void failed(Exception ex) {
+                TrackedRequest request = release(context);
+                if (request != null) {
+                    routeTracker.failed(request.target, ex, request.startNanos);
+                }
+                if (callback != null) {
+                    callback.failed(ex);
+                }
+            }
+
+            @Override
+            public void cancelled() {
+                cancel(context);
+                if (callback != null) {
+                    callback.cancelled();
+                }
+            }
+        };
+    }
+
+    @Override
+    public void process(HttpRequest request, HttpContext context) {
+        // Release the previous attempt of this request if it did not complete normally.
+        cancel(context);
+        Object target = context.getAttribute(CustomRoutePlanner.ROUTE_TARGET_ATTRIBUTE);
+        if (target instanceof RouteTarget) {
+            routeTracker.started((RouteTarget) target);
+            context.setAttribute(TRACKED_REQUEST_ATTRIBUTE, new TrackedRequest((RouteTarget) target, System.nanoTime()));
+        }
+    }
+
+    @Override
+    public void process(HttpResponse response, HttpContext context) {
+        TrackedRequest request = release(context);
+        if (request != null) {
+            routeTracker.responded(request.target, response.getStatusLine().getStatusCode(), request.startNanos);
+        }
+    }
+
+    private void cancel(HttpContext context) {
+        TrackedRequest request = release(context);
+        if (request != null) {
+            routeTracker.cancelled(request.target);
+        }
+    }
+
+    @CheckForNull
+    private static TrackedRequest release(HttpContext context) {
+        Object request = context.removeAttribute(TRACKED_REQUEST_ATTRIBUTE);
+        return request instanceof TrackedRequest ? (TrackedRequest) request : null;
+    }
+
+    private static final class TrackedRequest {
+        final RouteTarget target;
+        final long startNanos;
+
+        TrackedRequest(RouteTarget target, long startNanos) {
+            this.target = target;
+            this.startNanos = startNanos;
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package org.wikimedia.utils.http;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link DnsResolver} caching resolutions so that opening connections to
+ * route targets does not wait for a DNS lookup.
+ *
+ * An entry older than the refresh time is still served but refreshed in the
+ * background, so that frequently used hosts never expire. An entry older
+ * than the TTL is resolved again before being served, unless the lookup
+ * fails in which case the stale entry is served. After a failed lookup the
+ * stale entry is served without any lookup for the refresh time, then
+ * refreshed in the background, so that connections do not wait for a failing
+ * resolver.
+ *
+ * Entries not used for the TTL are dropped, except the targets of the routes
+ * of the registered planners. The targets of the routes are resolved ahead
+ * of their first use, see {@link #register(CustomRoutePlanner)}.
+ */
+@ParametersAreNonnullByDefault
+public class CachingDnsResolver implements DnsResolver, Closeable {
+    private static final Logger log = LoggerFactory.getLogger(CachingDnsResolver.class);
+
+    private final DnsResolver delegate;
+    private final long ttlNanos;
+    private final long refreshAfterNanos;
+    private final Executor refreshExecutor;
+    private final LongSupplier nanoClock;
+    @CheckForNull
+    private final ExecutorService ownedExecutor;
+    private final Map<String, Entry> cache = new ConcurrentHashMap<>();
+    /**
+     * Listener of each registered planner, and the targets of its current routes.
+     */
+    private final Map<CustomRoutePlanner, Consumer<RouteTable>> routeListeners = new ConcurrentHashMap<>();
+    private final Map<CustomRoutePlanner, Set<String>> routeTargets = new ConcurrentHashMap<>();
+    private final AtomicLong lastSweep;
+
+    public CachingDnsResolver(long ttlMillis, long refreshAfterMillis) {
+        this(SystemDefaultDnsResolver.INSTANCE, ttlMillis, refreshAfterMillis);
+    }
+
+    /**
+     * @param ttlMillis time after which entries must be resolved again
+     * @param refreshAfterMillis time after which entries are refreshed in the background, lower than the TTL
+     */
+    public CachingDnsResolver(DnsResolver delegate, long ttlMillis, long refreshAfterMillis) {
+        this(delegate, ttlMillis, refreshAfterMillis, Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "caching-dns-resolver");
+            thread.setDaemon(true);
+            return thread;
+        }), System::nanoTime, true);
+    }
+
+    CachingDnsResolver(DnsResolver delegate, long ttlMillis, long refreshAfterMillis, Executor refreshExecutor,
+                       LongSupplier nanoClock) {
+        this(delegate, ttlMillis, refreshAfterMillis, refreshExecutor, nanoClock, false);
+    }
+
+    private CachingDnsResolver(DnsResolver delegate, long ttlMillis, long refreshAfterMillis, Executor refreshExecutor,
+                               LongSupplier nanoClock, boolean ownsExecutor) {
+        if (refreshAfterMillis <= 0 || ttlMillis < refreshAfterMillis) {
+            throw new IllegalArgumentException("refreshAfterMillis must be positive and lower than ttlMillis");
+        }
+        this.delegate = delegate;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.refreshAfterNanos = TimeUnit.MILLISECONDS.toNanos(refreshAfterMillis);
+        this.refreshExecutor = refreshExecutor;
+        this.nanoClock = nanoClock;
+        this.ownedExecutor = ownsExecutor ? (ExecutorService) refreshExecutor : null;
+        this.lastSweep = new AtomicLong(nanoClock.getAsLong());
+    }
+
+    @Override
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        Entry entry = cache.get(host);
+        long now = nanoClock.getAsLong();
+        if (entry == null) {
+            return lookup(host, now).addresses.clone();
+        }
+        entry.lastUsed = now;
+        if (now - entry.expiresAt >= 0) {
+            try {
+                entry = lookup(host, now);
+            } catch (UnknownHostException e) {
+                log.warn("Failed to resolve {}, using addresses resolved {}ms ago", host,
+                        TimeUnit.NANOSECONDS.toMillis(now - entry.resolvedAt), e);
+                entry = backOff(host, entry, now, now + ttlNanos);
+            }
+        } else if (now - entry.refreshAt >= 0) {
+            refresh(host, entry);
+        }
+        return entry.addresses.clone();
+    }
+
+    /**
+     * Resolves the targets of the routes of the planner in the background,
+     * now and each time the routes change.
+     */
+    public void register(CustomRoutePlanner routePlanner) {
+        Consumer<RouteTable> listener = routeTable -> routeTargets.put(routePlanner, prefetch(routeTable));
+        if (routeListeners.putIfAbsent(routePlanner, listener) == null) {
+            routePlanner.addListener(listener);
+        }
+    }
+
+    public void unregister(CustomRoutePlanner routePlanner) {
+        Consumer<RouteTable> listener = routeListeners.remove(routePlanner);
+        if (listener != null) {
+            routePlanner.removeListener(listener);
+            routeTargets.remove(routePlanner);
+        }
+    }
+
+    /**
+     * @return the host names of the targets of the routes
+     */
+    private Set<String> prefetch(RouteTable routeTable) {
+        Set<String> targetNames = new HashSet<>();
+        routeTable.asMap().values().forEach(targets -> targets.getHosts().forEach(target -> {
+            if (target.getAddress() == null) {
+                targetNames.add(target.getHostName());
+            }
+            if (target.getAddress() == null && !cache.containsKey(target.getHostName())) {
+                execute(() -> {
+                    try {
+                        lookup(target.getHostName(), nanoClock.getAsLong());
+                    } catch (UnknownHostException e) {
+                        log.warn("Failed to resolve route target {}", target.getHostName(), e);
+                    }
+                });
+            }
+        }));
+        return targetNames;
+    }
+
+    private void refresh(String host, Entry entry) {
+        if (entry.refreshing.compareAndSet(false, true)) {
+            execute(() -> {
+                try {
+                    lookup(host, nanoClock.getAsLong());
+                } catch (UnknownHostException e) {
+                    // Keep serving the current entry, it is resolved again when it expires.
+                    log.warn("Failed to refresh {}", host, e);
+                    backOff(host, entry, nanoClock.getAsLong(), entry.expiresAt);
+                } finally {
+                    entry.refreshing.set(false);
+                }
+            });
+        }
+    }
+
+    private void execute(Runnable task) {
+        try {
+            refreshExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            log.debug("Resolver closed, not resolving in the background", e);
+        }
+    }
+
+    private Entry lookup(String host, long now) throws UnknownHostException {
+        Entry entry = new Entry(delegate.resolve(host), now, now + refreshAfterNanos, now + ttlNanos, now);
+        cache.put(host, entry);
+        sweep(now);
+        return entry;
+    }
+
+    /**
+     * Serves the stale entry without lookup for the refresh time, unless
+     * another thread already replaced it.
+     */
+    private Entry backOff(String host, Entry stale, long now, long expiresAt) {
+        Entry entry = new Entry(stale.addresses, stale.resolvedAt, now + refreshAfterNanos, expiresAt, stale.lastUsed);
+        return cache.replace(host, stale, entry) ? entry : stale;
+    }
+
+    /**
+     * Drops the entries not used for the TTL, at most once per refresh time.
+     */
+    private void sweep(long now) {
+        long last = lastSweep.get();
+        if (now - last < refreshAfterNanos || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        cache.entrySet().removeIf(e -> now - e.getValue().lastUsed >= ttlNanos && !isRouteTarget(e.getKey()));
+    }
+
+    private boolean isRouteTarget(String host) {
+        for (Set<String> targets : routeTargets.values()) {
+            if (targets.contains(host)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Number of cached hosts.
+     */
+    int size() {
+        return cache.size();
+    }
+
+    @Override
+    public void close() {
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdownNow();
+        }
+    }
+
+    private static final class Entry {
+        final InetAddress[] addresses;
+        final long resolvedAt;
+        final long refreshAt;
+        final long expiresAt;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+        volatile long lastUsed;
+
+        Entry(InetAddress[] addresses, long resolvedAt, long refreshAt, long expiresAt, long lastUsed) {
+            this.addresses = addresses;
+            this.resolvedAt = resolvedAt;
+            this.refreshAt = refreshAt;
+            this.expiresAt = expiresAt;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
@@ -1,9 +1,13 @@
 package org.wikimedia.utils.http;
 
 import static java.util.Arrays.stream;
+import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toMap;
 
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 
 import javax.annotation.Nonnull;
 import javax.annotation.ParametersAreNonnullByDefault;
@@ -14,15 +18,42 @@ import org.apache.http.HttpRequest;
 import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.conn.routing.HttpRoutePlanner;
 import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+/**
+ * Routes requests to some hosts to other targets, typically proxies.
+ *
+ * Works with both the classic {@code HttpClientBuilder} and the async
+ * {@code HttpAsyncClientBuilder}, which share the {@link HttpRoutePlanner}
+ * interface, see {@link RouteTracker} to balance multi-target routes and
+ * eject unhealthy targets.
+ */
 @ParametersAreNonnullByDefault
 public class CustomRoutePlanner implements HttpRoutePlanner {
+    /**
+     * Context attribute holding the {@link RouteTarget} selected for the
+     * current request, or absent if the request uses the default route.
+     */
+    public static final String ROUTE_TARGET_ATTRIBUTE = "org.wikimedia.utils.http.route-target";
+    /**
+     * Context attribute holding a {@link RouteTarget} to avoid if its route
+     * has other available targets, see {@link RequestHedger}.
+     */
+    public static final String AVOIDED_TARGET_ATTRIBUTE = "org.wikimedia.utils.http.avoided-route-target";
+
+    private static final Logger log = LoggerFactory.getLogger(CustomRoutePlanner.class);
 
-    private final Map<String, HttpHost> customRouteMap;
+    private volatile RouteTable routeTable;
     private final HttpRoutePlanner defaultRoutePlanner;
+    private final List<Consumer<RouteTable>> listeners = new CopyOnWriteArrayList<>();
 
     public CustomRoutePlanner(Map<String, HttpHost> customRouteMap, HttpRoutePlanner defaultRoutePlanner) {
-        this.customRouteMap = customRouteMap;
+        this(RouteTable.of(customRouteMap), defaultRoutePlanner);
+    }
+
+    public CustomRoutePlanner(RouteTable routeTable, HttpRoutePlanner defaultRoutePlanner) {
+        this.routeTable = routeTable;
         this.defaultRoutePlanner = defaultRoutePlanner;
     }
 
@@ -30,6 +61,11 @@ public class CustomRoutePlanner implements HttpRoutePlanner {
      * @param mapProxyProperty has a format of url=url
      * separated by commas with no space between them
      * for example: www.wikidata.org=http://proxy.local:9999,www.metawiki.org=https://proxy.local:8080
+     * The source can also be a wildcard matching all the subdomains of a host,
+     * for example: *.wikipedia.org=http://proxy.local:9999
+     * Exact hosts take precedence over wildcards, and the most specific wildcard wins.
+     * The source can be followed by a path prefix to only route some requests to a host,
+     * for example: www.wikidata.org/sparql=http://query-proxy.local:9999
      */
     @Nonnull
     public static Map<String, HttpHost> createMapFromString(String mapProxyProperty) {
@@ -38,23 +74,102 @@ public class CustomRoutePlanner implements HttpRoutePlanner {
                 collect(toMap(pair -> pair[0], pair -> HttpHost.create(pair[1])));
     }
 
-    public void addRoute(String sourceURL, String targetURL) {
-        customRouteMap.put(sourceURL, HttpHost.create(targetURL));
+    /**
+     * Same as {@link #createMapFromString(String)} but each source can be
+     * balanced between several targets separated by |,
+     * for example: www.wikidata.org=http://p1:9999|http://p2:9999
+     */
+    @Nonnull
+    public static Map<String, List<HttpHost>> createTargetsMapFromString(String mapProxyProperty) {
+        String[] pairs = mapProxyProperty.split(",");
+        return stream(pairs).map(p -> p.split("=")).
+                collect(toMap(pair -> pair[0], pair -> parseTargets(pair[1])));
+    }
+
+    /**
+     * @param targetURLs one or more urls separated by |
+     */
+    @Nonnull
+    static List<HttpHost> parseTargets(String targetURLs) {
+        return stream(targetURLs.split("\\|")).map(HttpHost::create).collect(toList());
+    }
+
+    /**
+     * @param targetURL one or more urls separated by |
+     */
+    public synchronized void addRoute(String sourceURL, String targetURL) {
+        setRouteTable(routeTable.withRoute(sourceURL, parseTargets(targetURL)));
+    }
+
+    /**
+     * Atomically replaces all the routes, requests being planned concurrently
+     * see either the old or the new routes. Targets still used by the new
+     * routes keep their health and requests in flight, see
+     * {@link RouteTable#withRoutes(Map)}.
+     */
+    public synchronized void setRoutes(Map<String, HttpHost> routes) {
+        setRouteTable(routeTable.withRoutes(RouteTable.singleTargets(routes)));
+    }
+
+    /**
+     * Same as {@link #setRoutes(Map)} with routes balanced between one or more targets.
+     */
+    public synchronized void setRouteTargets(Map<String, List<HttpHost>> routes) {
+        setRouteTable(routeTable.withRoutes(routes));
+    }
+
+    /**
+     * Installs a table built by the caller as is: unless it was built from
+     * the current table with {@link RouteTable#withRoutes(Map)}, the state of
+     * the targets (health, requests in flight) starts over.
+     *
+     * @see #setRoutes(Map)
+     */
+    public synchronized void setRouteTable(RouteTable routeTable) {
+        this.routeTable = routeTable;
+        for (Consumer<RouteTable> listener : listeners) {
+            try {
+                listener.accept(routeTable);
+            } catch (RuntimeException e) {
+                // The routes are installed, a failing listener must not prevent the others from following them.
+                log.error("Failed to notify {} of new routes", listener, e);
+            }
+        }
+    }
+
+    /**
+     * Registers a listener called with the current routes, then with the new
+     * routes each time they change. Exceptions thrown by the listener when
+     * the routes change are logged and ignored.
+     */
+    public synchronized void addListener(Consumer<RouteTable> listener) {
+        listeners.add(listener);
+        listener.accept(routeTable);
+    }
+
+    public void removeListener(Consumer<RouteTable> listener) {
+        listeners.remove(listener);
+    }
+
+    @Nonnull
+    public RouteTable getRouteTable() {
+        return routeTable;
     }
 
     @Override @Nonnull
     public HttpRoute determineRoute(HttpHost httpHost, HttpRequest httpRequest, HttpContext httpContext) throws HttpException {
-        HttpHost destHost = customRouteMap.get(httpHost.getHostName());
-        if (destHost != null) {
-            return new HttpRoute(
-                    new HttpHost(
-                            destHost.getHostName(),
-                            // If the dest port was not set, then assume we want use the same one as the request url.
-                            destHost.getPort() != -1 ? destHost.getPort() : httpHost.getPort(),
-                            destHost.getSchemeName()
-                    )
-            );
+        RouteTargets targets = routeTable.lookup(httpHost.getHostName(), httpRequest);
+        // When all the targets are ejected, the request falls back to the default route.
+        RouteTarget target = null;
+        if (targets != null) {
+            Object avoided = httpContext.getAttribute(AVOIDED_TARGET_ATTRIBUTE);
+            target = targets.select(System.nanoTime(), avoided instanceof RouteTarget ? (RouteTarget) avoided : null);
+        }
+        if (target != null) {
+            httpContext.setAttribute(ROUTE_TARGET_ATTRIBUTE, target);
+            return target.route(httpHost);
         } else {
+            httpContext.removeAttribute(ROUTE_TARGET_ATTRIBUTE);
             return defaultRoutePlanner.determineRoute(httpHost, httpRequest, httpContext);
         }
     }
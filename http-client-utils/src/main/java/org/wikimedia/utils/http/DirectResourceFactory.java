@@ -0,0 +1,127 @@
+package org.wikimedia.utils.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectStreamException;
+import java.nio.ByteBuffer;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import org.apache.http.client.cache.InputLimit;
+import org.apache.http.client.cache.Resource;
+import org.apache.http.client.cache.ResourceFactory;
+import org.apache.http.impl.client.cache.HeapResource;
+
+/**
+ * Stores the bodies of cached responses in direct buffers, out of the java
+ * heap, so that a large response cache does not weigh on garbage collection.
+ *
+ * The memory of a body is released when its buffer is collected, direct
+ * memory is limited by -XX:MaxDirectMemorySize which should leave room for
+ * the size of the cache.
+ */
+@ParametersAreNonnullByDefault
+public final class DirectResourceFactory implements ResourceFactory {
+    public static final DirectResourceFactory INSTANCE = new DirectResourceFactory();
+
+    private DirectResourceFactory() {
+    }
+
+    @Override
+    @Nonnull
+    public Resource generate(String requestId, InputStream instream, @Nullable InputLimit limit) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[2048];
+        long total = 0;
+        int read;
+        while ((read = instream.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+            total += read;
+            if (limit != null && total > limit.getValue()) {
+                limit.reached();
+                break;
+            }
+        }
+        byte[] bytes = out.toByteArray();
+        ByteBuffer body = ByteBuffer.allocateDirect(bytes.length);
+        body.put(bytes).flip();
+        return new DirectResource(body);
+    }
+
+    /**
+     * Bodies are never modified, nor freed by {@link Resource#dispose()},
+     * so copies share the same buffer.
+     */
+    @Override
+    @Nonnull
+    public Resource copy(String requestId, Resource resource) throws IOException {
+        if (resource instanceof DirectResource) {
+            return resource;
+        }
+        try (InputStream in = resource.getInputStream()) {
+            return generate(requestId, in, null);
+        }
+    }
+
+    private static final class DirectResource implements Resource {
+        private static final long serialVersionUID = 1L;
+
+        @SuppressWarnings("serial")
+        private final ByteBuffer body;
+
+        DirectResource(ByteBuffer body) {
+            this.body = body;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            ByteBuffer in = body.duplicate();
+            return new InputStream() {
+                @Override
+                public int read() {
+                    return in.hasRemaining() ? in.get() & 0xff : -1;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    if (len == 0) {
+                        return 0;
+                    }
+                    if (!in.hasRemaining()) {
+                        return -1;
+                    }
+                    int n = Math.min(len, in.remaining());
+                    in.get(b, off, n);
+                    return n;
+                }
+
+                @Override
+                public int available() {
+                    return in.remaining();
+                }
+            };
+        }
+
+        @Override
+        public long length() {
+            return body.capacity();
+        }
+
+        @Override
+        public void dispose() {
+            // The buffer is freed once collected, it may still be read by a copy of this resource.
+        }
+
+        /**
+         * Buffers are not serializable, serialized copies are kept on heap.
+         */
+        private Object writeReplace() throws ObjectStreamException {
+            byte[] bytes = new byte[body.capacity()];
+            body.duplicate().get(bytes);
+            return new HeapResource(bytes);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package org.wikimedia.utils.http;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Decides when a {@link RouteTarget} is considered unhealthy and for how
+ * long it is ejected from its route.
+ *
+ * A target is ejected after a number of consecutive failures, a failure
+ * being an I/O error (connect failure, timeout, ...), a 5xx response or a
+ * response slower than the slow response threshold. Once the ejection time
+ * has elapsed the target is re-admitted on probation: the first failure
+ * ejects it again for twice as long, up to the max ejection time, while a
+ * success fully restores it.
+ */
+@ParametersAreNonnullByDefault
+public final class HealthPolicy {
+    public static final HealthPolicy DEFAULT = new HealthPolicy(5, 0, TimeUnit.SECONDS.toMillis(10), TimeUnit.MINUTES.toMillis(5));
+
+    private final int consecutiveFailures;
+    private final long slowResponseNanos;
+    private final long baseEjectionNanos;
+    private final long maxEjectionNanos;
+
+    /**
+     * @param consecutiveFailures number of consecutive failures after which a target is ejected
+     * @param slowResponseMillis responses slower than this are failures, 0 to disable
+     * @param baseEjectionMillis how long a target is ejected the first time
+     * @param maxEjectionMillis max time a target can be ejected for
+     */
+    public HealthPolicy(int consecutiveFailures, long slowResponseMillis, long baseEjectionMillis, long maxEjectionMillis) {
+        if (consecutiveFailures < 1) {
+            throw new IllegalArgumentException("consecutiveFailures must be at least 1");
+        }
+        if (baseEjectionMillis < 1 || maxEjectionMillis < baseEjectionMillis) {
+            throw new IllegalArgumentException("Ejection times must be positive and maxEjectionMillis >= baseEjectionMillis");
+        }
+        this.consecutiveFailures = consecutiveFailures;
+        this.slowResponseNanos = TimeUnit.MILLISECONDS.toNanos(slowResponseMillis);
+        this.baseEjectionNanos = TimeUnit.MILLISECONDS.toNanos(baseEjectionMillis);
+        this.maxEjectionNanos = TimeUnit.MILLISECONDS.toNanos(maxEjectionMillis);
+    }
+
+    int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    boolean isSlow(long responseNanos) {
+        return slowResponseNanos > 0 && responseNanos > slowResponseNanos;
+    }
+
+    /**
+     * @param previousEjections number of times the target has been ejected without recovering since
+     */
+    long ejectionNanos(int previousEjections) {
+        long ejection = baseEjectionNanos << Math.min(previousEjections, 30);
+        return ejection <= 0 || ejection > maxEjectionNanos ? maxEjectionNanos : ejection;
+    }
+}
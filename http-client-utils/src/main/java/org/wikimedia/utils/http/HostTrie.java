@@ -0,0 +1,148 @@
+package org.wikimedia.utils.http;
+
+import java.util.Arrays;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Maps wildcard host patterns such as {@code *.wikipedia.org} to values.
+ *
+ * Patterns are stored in a trie keyed by domain labels in reverse order
+ * ({@code org -> wikipedia}) so that a lookup costs one step per label of
+ * the looked up host, regardless of the number of patterns. When several
+ * patterns match, the most specific one (the one with the most labels) wins.
+ *
+ * A pattern matches hosts that have at least one more label than its suffix:
+ * {@code *.wikipedia.org} matches {@code en.wikipedia.org} and
+ * {@code en.m.wikipedia.org} but not {@code wikipedia.org}.
+ *
+ * Lookups do not allocate: labels of the looked up host are compared in
+ * place. Matching is case sensitive, {@link RouteTable} lower cases both
+ * patterns and hosts. Not thread safe for writes, it must be fully built before being
+ * shared, see {@link RouteTable}.
+ */
+@ParametersAreNonnullByDefault
+final class HostTrie<V> {
+    static final String WILDCARD_PREFIX = "*.";
+
+    private final Node<V> root = new Node<>();
+
+    static boolean isWildcard(String hostPattern) {
+        return hostPattern.startsWith(WILDCARD_PREFIX);
+    }
+
+    /**
+     * @param hostPattern a pattern of the form {@code *.suffix}
+     */
+    void put(String hostPattern, V value) {
+        if (!isWildcard(hostPattern) || hostPattern.length() == WILDCARD_PREFIX.length()) {
+            throw new IllegalArgumentException("Invalid wildcard host pattern: " + hostPattern);
+        }
+        String suffix = hostPattern.substring(WILDCARD_PREFIX.length());
+        Node<V> node = root;
+        int end = suffix.length();
+        while (end > 0) {
+            int start = suffix.lastIndexOf('.', end - 1) + 1;
+            node = node.getOrCreateChild(suffix.substring(start, end));
+            end = start - 1;
+        }
+        node.value = value;
+    }
+
+    @CheckForNull
+    V get(String hostName) {
+        if (root.labels.length == 0) {
+            // No wildcard, the common case of hosts falling through to the default route.
+            return null;
+        }
+        V match = null;
+        Node<V> node = root;
+        int end = hostName.length();
+        while (end > 0) {
+            int start = hostName.lastIndexOf('.', end - 1) + 1;
+            if (start == 0) {
+                // The left-most label can only be matched by the wildcard itself.
+                break;
+            }
+            node = node.child(hostName, start, end);
+            if (node == null) {
+                break;
+            }
+            if (node.value != null) {
+                match = node.value;
+            }
+            end = start - 1;
+        }
+        return match;
+    }
+
+    private static final class Node<V> {
+        /**
+         * Sorted, children[i] is the child for labels[i].
+         */
+        String[] labels = new String[0];
+        Node<V>[] children = newArray(0);
+        V value;
+
+        /**
+         * Binary search of the label hostName[start, end).
+         */
+        @CheckForNull
+        Node<V> child(String hostName, int start, int end) {
+            int low = 0;
+            int high = labels.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = compare(labels[mid], hostName, start, end);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return children[mid];
+                }
+            }
+            return null;
+        }
+
+        Node<V> getOrCreateChild(String label) {
+            int i = Arrays.binarySearch(labels, label);
+            if (i >= 0) {
+                return children[i];
+            }
+            int insertAt = -i - 1;
+            String[] newLabels = new String[labels.length + 1];
+            Node<V>[] newChildren = newArray(labels.length + 1);
+            System.arraycopy(labels, 0, newLabels, 0, insertAt);
+            System.arraycopy(children, 0, newChildren, 0, insertAt);
+            System.arraycopy(labels, insertAt, newLabels, insertAt + 1, labels.length - insertAt);
+            System.arraycopy(children, insertAt, newChildren, insertAt + 1, labels.length - insertAt);
+            newLabels[insertAt] = label;
+            newChildren[insertAt] = new Node<>();
+            labels = newLabels;
+            children = newChildren;
+            return newChildren[insertAt];
+        }
+
+        /**
+         * Same order as {@link String#compareTo(String)} of label and hostName[start, end).
+         */
+        private static int compare(String label, String hostName, int start, int end) {
+            int length = end - start;
+            int common = Math.min(label.length(), length);
+            for (int i = 0; i < common; i++) {
+                int cmp = label.charAt(i) - hostName.charAt(start + i);
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return label.length() - length;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <V> Node<V>[] newArray(int length) {
+            return (Node<V>[]) new Node<?>[length];
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package org.wikimedia.utils.http;
+
+import java.util.Arrays;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Maps path prefixes such as {@code /sparql} to values.
+ *
+ * Prefixes are stored in a character trie so that a lookup costs one step
+ * per character of the looked up path, regardless of the number of
+ * prefixes. When several prefixes match, the longest one wins. Prefixes are
+ * plain string prefixes: {@code /wiki} matches {@code /wikidata}, use
+ * {@code /wiki/} to only match the paths below {@code /wiki}.
+ *
+ * Not thread safe for writes, it must be fully built before being shared.
+ */
+@ParametersAreNonnullByDefault
+final class PathTrie<V> {
+    private final Node<V> root = new Node<>();
+
+    void put(String prefix, V value) {
+        Node<V> node = root;
+        for (int i = 0; i < prefix.length(); i++) {
+            node = node.getOrCreateChild(prefix.charAt(i));
+        }
+        node.value = value;
+    }
+
+    /**
+     * @param path the path to match, ends at the first ? or # if any
+     */
+    @CheckForNull
+    V longestPrefixMatch(CharSequence path) {
+        V match = root.value;
+        Node<V> node = root;
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '?' || c == '#') {
+                break;
+            }
+            node = node.child(c);
+            if (node == null) {
+                break;
+            }
+            if (node.value != null) {
+                match = node.value;
+            }
+        }
+        return match;
+    }
+
+    private static final class Node<V> {
+        /**
+         * Sorted, children[i] is the child for keys[i].
+         */
+        char[] keys = new char[0];
+        Node<V>[] children = newArray(0);
+        V value;
+
+        @CheckForNull
+        Node<V> child(char c) {
+            int i = Arrays.binarySearch(keys, c);
+            return i >= 0 ? children[i] : null;
+        }
+
+        Node<V> getOrCreateChild(char c) {
+            int i = Arrays.binarySearch(keys, c);
+            if (i >= 0) {
+                return children[i];
+            }
+            int insertAt = -i - 1;
+            char[] newKeys = new char[keys.length + 1];
+            Node<V>[] newChildren = newArray(keys.length + 1);
+            System.arraycopy(keys, 0, newKeys, 0, insertAt);
+            System.arraycopy(children, 0, newChildren, 0, insertAt);
+            System.arraycopy(keys, insertAt, newKeys, insertAt + 1, keys.length - insertAt);
+            System.arraycopy(children, insertAt, newChildren, insertAt + 1, keys.length - insertAt);
+            newKeys[insertAt] = c;
+            newChildren[insertAt] = new Node<>();
+            keys = newKeys;
+            children = newChildren;
+            return newChildren[insertAt];
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <V> Node<V>[] newArray(int length) {
+            return (Node<V>[]) new Node<?>[length];
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package org.wikimedia.utils.http;
+
+import static java.util.Collections.newSetFromMap;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.Configurable;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpExecutionAware;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Hedges GET and HEAD requests to routes having several targets.
+ *
+ * The request is sent to a first target and, if no response has been
+ * received after a delay, sent again to another target of the route. The
+ * first response wins and the other request is aborted. The delay is a
+ * percentile of the latency of the route, so that only the slowest requests
+ * are hedged, and hedges are limited to a ratio of the requests to avoid
+ * amplifying the load on targets that are already slow. The latency of the
+ * route is the latency of each attempt, not of the hedged request, which
+ * would lower the delay each time hedging works.
+ *
+ * Both requests are executed on the given executor while the calling thread
+ * waits for the winner. Other requests are executed directly.
+ *
+ * Hedged requests are sent as copies, so that aborting the losing attempt
+ * leaves the request of the caller untouched, and aborting the request of
+ * the caller aborts both attempts. Each attempt has its own context, a child
+ * of the context of the caller: attempts share its attributes, the cookie
+ * store or the auth cache for example, and the {@link RouteTarget} of the
+ * winner is set in the context of the caller.
+ */
+@ParametersAreNonnullByDefault
+public class RequestHedger implements Closeable {
+    /**
+     * Latency samples needed before the latency percentile is trusted, the
+     * min delay is used until then.
+     */
+    private static final int MIN_SAMPLES = 100;
+    private static final long DELAY_UPDATE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    /**
+     * Hedges that can be accumulated by idle routes, in thousandths of hedge.
+     */
+    private static final long MAX_HEDGE_BUDGET = 10_000;
+
+    private final CloseableHttpClient client;
+    private final CustomRoutePlanner routePlanner;
+    private final ExecutorService executor;
+    private final double percentile;
+    private final long minDelayNanos;
+    private final long budgetPerRequest;
+    private final AtomicLong hedgeBudget = new AtomicLong();
+    private final Map<RouteTargets, RouteLatency> routeLatencies = new ConcurrentHashMap<>();
+    private final Consumer<RouteTable> routeListener = this::forgetRemovedRoutes;
+
+    /**
+     * @param client a client using the route planner
+     * @param percentile percentile of the route latency after which a request is hedged
+     * @param minDelayMillis min delay after which a request is hedged
+     * @param maxHedgeRatio max ratio of hedged requests, between 0 and 1
+     */
+    public RequestHedger(CloseableHttpClient client, CustomRoutePlanner routePlanner, ExecutorService executor,
+                         double percentile, long minDelayMillis, double maxHedgeRatio) {
+        if (maxHedgeRatio < 0 || maxHedgeRatio > 1) {
+            throw new IllegalArgumentException("maxHedgeRatio must be between 0 and 1");
+        }
+        this.client = client;
+        this.routePlanner = routePlanner;
+        this.executor = executor;
+        this.percentile = percentile;
+        this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(minDelayMillis);
+        this.budgetPerRequest = Math.round(maxHedgeRatio * 1000);
+        routePlanner.addListener(routeListener);
+    }
+
+    @Nonnull
+    public CloseableHttpResponse execute(HttpUriRequest request) throws IOException {
+        return execute(request, HttpClientContext.create());
+    }
+
+    @Nonnull
+    public CloseableHttpResponse execute(HttpUriRequest request, HttpContext context) throws IOException {
+        RouteTargets targets = hedgeableRoute(request);
+        if (targets == null) {
+            return client.execute(request, context);
+        }
+        RouteLatency latency = routeLatencies.computeIfAbsent(targets, k -> new RouteLatency());
+        long start = System.nanoTime();
+        CompletionService<CloseableHttpResponse> completionService = new ExecutorCompletionService<>(executor);
+        Attempt primary = new Attempt(copy(request), new BasicHttpContext(context), latency);
+        cancelWith(request, primary, null);
+        primary.submit(completionService);
+        Attempt hedge = null;
+        Future<CloseableHttpResponse> winner = null;
+        try {
+            Future<CloseableHttpResponse> done = completionService.poll(latency.delay(start), TimeUnit.NANOSECONDS);
+            if (done == null && acquireHedge()) {
+                hedge = new Attempt(copy(request), new BasicHttpContext(context), latency);
+                // Send the hedge to another target than the one of the first request.
+                Object primaryTarget = primary.context.getAttribute(CustomRoutePlanner.ROUTE_TARGET_ATTRIBUTE);
+                if (primaryTarget != null) {
+                    hedge.context.setAttribute(CustomRoutePlanner.AVOIDED_TARGET_ATTRIBUTE, primaryTarget);
+                }
+                cancelWith(request, primary, hedge);
+                hedge.submit(completionService);
+            }
+            if (done == null) {
+                done = completionService.take();
+            }
+            winner = winner(done, hedge != null ? completionService : null);
+            CloseableHttpResponse response = winner.get();
+            Attempt winning = winner == primary.future ? primary : hedge;
+            context.setAttribute(CustomRoutePlanner.ROUTE_TARGET_ATTRIBUTE,
+                    winning.context.getAttribute(CustomRoutePlanner.ROUTE_TARGET_ATTRIBUTE));
+            return response;
+        } catch (ExecutionException e) {
+            // Not reachable, the winner completed successfully
+            throw asIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for " + request.getURI(), e);
+        } finally {
+            // Whatever attempt did not win must not hold a connection.
+            primary.loseUnless(winner);
+            if (hedge != null) {
+                hedge.loseUnless(winner);
+            }
+        }
+    }
+
+    /**
+     * Stops following the route changes of the planner.
+     */
+    @Override
+    public void close() {
+        routePlanner.removeListener(routeListener);
+    }
+
+    @CheckForNull
+    private RouteTargets hedgeableRoute(HttpUriRequest request) {
+        if (!HttpGet.METHOD_NAME.equals(request.getMethod()) && !HttpHead.METHOD_NAME.equals(request.getMethod())) {
+            return null;
+        }
+        HttpHost host = URIUtils.extractHost(request.getURI());
+        if (host == null) {
+            return null;
+        }
+        RouteTargets targets = routePlanner.getRouteTable().lookup(host.getHostName(), request);
+        return targets != null && targets.size() > 1 ? targets : null;
+    }
+
+    /**
+     * The first attempt to complete successfully, waiting for the other
+     * attempt if the first one to complete failed.
+     */
+    private static Future<CloseableHttpResponse> winner(Future<CloseableHttpResponse> first,
+                                                        @CheckForNull CompletionService<CloseableHttpResponse> others)
+            throws IOException, InterruptedException {
+        try {
+            first.get();
+            return first;
+        } catch (ExecutionException e) {
+            if (others != null) {
+                Future<CloseableHttpResponse> second = others.take();
+                try {
+                    second.get();
+                    return second;
+                } catch (ExecutionException ignored) {
+                    // Report the failure of the first attempt
+                }
+            }
+            throw asIOException(e);
+        }
+    }
+
+    private static IOException asIOException(ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+            return (IOException) e.getCause();
+        }
+        if (e.getCause() instanceof RuntimeException) {
+            throw (RuntimeException) e.getCause();
+        }
+        return new IOException(e.getCause());
+    }
+
+    /**
+     * Propagates the abort of the request of the caller to its attempts.
+     */
+    private static void cancelWith(HttpUriRequest request, Attempt primary, @Nullable Attempt hedge) {
+        if (request instanceof HttpExecutionAware) {
+            // Replaces the previous cancellable, or cancels this one if the request is already aborted.
+            ((HttpExecutionAware) request).setCancellable(() -> {
+                primary.request.abort();
+                if (hedge != null) {
+                    hedge.request.abort();
+                }
+                return true;
+            });
+        }
+    }
+
+    private boolean acquireHedge() {
+        long budget = hedgeBudget.get();
+        while (budget >= 1000) {
+            if (hedgeBudget.compareAndSet(budget, budget - 1000)) {
+                return true;
+            }
+            budget = hedgeBudget.get();
+        }
+        return false;
+    }
+
+    private static HttpRequestBase copy(HttpUriRequest request) {
+        HttpRequestBase copy = HttpHead.METHOD_NAME.equals(request.getMethod())
+                ? new HttpHead(request.getURI()) : new HttpGet(request.getURI());
+        copy.setHeaders(request.getAllHeaders());
+        if (request instanceof Configurable) {
+            copy.setConfig(((Configurable) request).getConfig());
+        }
+        return copy;
+    }
+
+    private void forgetRemovedRoutes(RouteTable routeTable) {
+        Set<RouteTargets> routes = newSetFromMap(new IdentityHashMap<>());
+        routes.addAll(routeTable.asMap().values());
+        routeLatencies.keySet().retainAll(routes);
+    }
+
+    private final class RouteLatency {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final AtomicLong nextUpdate = new AtomicLong(System.nanoTime());
+        volatile long delayNanos = minDelayNanos;
+
+        /**
+         * Also earns the budget of hedges for this request.
+         */
+        long delay(long now) {
+            hedgeBudget.accumulateAndGet(budgetPerRequest, (budget, earned) -> Math.min(budget + earned, MAX_HEDGE_BUDGET));
+            long next = nextUpdate.get();
+            if (now - next >= 0 && nextUpdate.compareAndSet(next, now + DELAY_UPDATE_INTERVAL_NANOS)) {
+                if (histogram.getCount() >= MIN_SAMPLES) {
+                    delayNanos = Math.max(histogram.getValueAtPercentile(percentile), minDelayNanos);
+                }
+            }
+            return delayNanos;
+        }
+    }
+
+    private final class Attempt {
+        final HttpUriRequest request;
+        final HttpContext context;
+        final RouteLatency latency;
+        final AtomicBoolean lost = new AtomicBoolean();
+        final AtomicBoolean recorded = new AtomicBoolean();
+        Future<CloseableHttpResponse> future;
+        long start;
+
+        Attempt(HttpUriRequest request, HttpContext context, RouteLatency latency) {
+            this.request = request;
+            this.context = context;
+            this.latency = latency;
+        }
+
+        void submit(CompletionService<CloseableHttpResponse> completionService) {
+            start = System.nanoTime();
+            future = completionService.submit(() -> {
+                CloseableHttpResponse response = client.execute(request, context);
+                record();
+                if (lost.get()) {
+                    response.close();
+                }
+                return response;
+            });
+        }
+
+        /**
+         * Records the latency of this attempt once: the time to its response,
+         * or the time until it lost, a lower bound of its latency.
+         */
+        void record() {
+            if (recorded.compareAndSet(false, true)) {
+                latency.histogram.record(System.nanoTime() - start);
+            }
+        }
+
+        /**
+         * Aborts the attempt unless it won, releasing its connection and the
+         * request counted in flight on its target by the {@link RouteTracker}.
+         */
+        void loseUnless(@CheckForNull Future<CloseableHttpResponse> winner) {
+            if (future == winner) {
+                return;
+            }
+            lost.set(true);
+            if (!future.isDone()) {
+                record();
+            }
+            request.abort();
+            // Close the response if it was received before being marked as lost.
+            if (future.isDone()) {
+                try {
+                    future.get().close();
+                } catch (ExecutionException | InterruptedException | IOException e) {
+                    // Nothing to release
+                }
+            }
+        }
+    }
+}
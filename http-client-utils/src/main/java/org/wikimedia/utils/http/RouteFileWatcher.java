@@ -0,0 +1,153 @@
+package org.wikimedia.utils.http;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import org.apache.http.HttpHost;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the routes of a {@link CustomRoutePlanner} in sync with a file.
+ *
+ * The file has one route per line, using the same source=targets format as
+ * {@link CustomRoutePlanner#createTargetsMapFromString(String)}. Blank lines and
+ * lines starting with # are ignored.
+ *
+ * Changes are detected with a {@link WatchService} and parsed on a background
+ * thread, once the file has not changed for {@value #SETTLE_MILLIS}ms: most
+ * writers (editors, shell redirections, {@link Files#write}) truncate the
+ * file before writing the new content. A file that fails to parse or has no
+ * route is ignored and the previous routes are kept, otherwise the new
+ * routes replace the old ones atomically, see
+ * {@link CustomRoutePlanner#setRouteTargets(Map)}: targets still used by
+ * the new routes keep their health, ejected targets stay ejected.
+ *
+ * The safest way to update the routes is to write a temporary file in the
+ * same directory and to move it over the route file with
+ * {@link java.nio.file.StandardCopyOption#ATOMIC_MOVE}, so that a partially
+ * written file is never read.
+ */
+@ParametersAreNonnullByDefault
+public class RouteFileWatcher implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(RouteFileWatcher.class);
+    /**
+     * Quiet period after the last change before the file is read.
+     */
+    static final long SETTLE_MILLIS = 100;
+
+    private final Path routeFile;
+    private final CustomRoutePlanner routePlanner;
+    private final WatchService watchService;
+    private final Thread watcherThread;
+    private final AtomicInteger failedReloads = new AtomicInteger();
+
+    /**
+     * Loads the routes from the file and starts watching it.
+     *
+     * @throws IOException if the file cannot be read or watched
+     * @throws IllegalArgumentException if the file is not a valid route file
+     */
+    public RouteFileWatcher(Path routeFile, CustomRoutePlanner routePlanner) throws IOException {
+        this.routeFile = routeFile.toAbsolutePath();
+        this.routePlanner = routePlanner;
+        routePlanner.setRouteTargets(readRoutes(this.routeFile));
+        this.watchService = this.routeFile.getFileSystem().newWatchService();
+        this.routeFile.getParent().register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+        this.watcherThread = new Thread(this::watch, "route-file-watcher-" + this.routeFile.getFileName());
+        this.watcherThread.setDaemon(true);
+        this.watcherThread.start();
+    }
+
+    /**
+     * @throws IllegalArgumentException if a line is not a valid route, a source is declared twice
+     * or the file has no route
+     */
+    @Nonnull
+    public static Map<String, List<HttpHost>> readRoutes(Path routeFile) throws IOException {
+        List<String> lines = Files.readAllLines(routeFile, UTF_8);
+        Map<String, List<HttpHost>> routes = new HashMap<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] pair = line.split("=");
+            if (pair.length != 2 || pair[0].isEmpty()) {
+                throw new IllegalArgumentException("Invalid route at " + routeFile + ":" + (i + 1) + ": " + line);
+            }
+            if (routes.put(pair[0], CustomRoutePlanner.parseTargets(pair[1])) != null) {
+                throw new IllegalArgumentException("Duplicate route at " + routeFile + ":" + (i + 1) + ": " + line);
+            }
+        }
+        if (routes.isEmpty()) {
+            throw new IllegalArgumentException("No route in " + routeFile);
+        }
+        return routes;
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = false;
+                // Wait for the writes to settle before reading the file.
+                while (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        changed |= event.kind() == OVERFLOW || routeFile.getFileName().equals(event.context());
+                    }
+                    key.reset();
+                    key = watchService.poll(SETTLE_MILLIS, MILLISECONDS);
+                }
+                if (changed) {
+                    reload();
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            log.debug("Stopped watching {}", routeFile);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void reload() {
+        try {
+            routePlanner.setRouteTargets(readRoutes(routeFile));
+            log.info("Reloaded routes from {}", routeFile);
+        } catch (IOException | IllegalArgumentException e) {
+            failedReloads.incrementAndGet();
+            log.warn("Failed to reload routes from {}, keeping the previous routes", routeFile, e);
+        }
+    }
+
+    /**
+     * Number of changes of the file which were ignored because it could not be read or parsed.
+     */
+    public int getFailedReloads() {
+        return failedReloads.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
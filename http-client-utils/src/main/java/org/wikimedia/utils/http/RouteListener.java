@@ -0,0 +1,53 @@
+package org.wikimedia.utils.http;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Notified by {@link RouteTracker} of the requests sent to route targets.
+ *
+ * Every started request ends with exactly one call to either
+ * {@link #responseReceived(RouteTarget, int, long)},
+ * {@link #requestFailed(RouteTarget, long)} or
+ * {@link #requestCancelled(RouteTarget)}. Connections are reported
+ * separately, and only for the connection pools tracked by
+ * {@link RouteTracker#trackConnects}. Methods are called on the request
+ * path and must not block.
+ */
+@ParametersAreNonnullByDefault
+public interface RouteListener {
+    default void requestStarted(RouteTarget target) {
+    }
+
+    /**
+     * @param latencyNanos time from sending the request on an open connection
+     *                     to receiving the response headers
+     */
+    default void responseReceived(RouteTarget target, int statusCode, long latencyNanos) {
+    }
+
+    /**
+     * The request failed with an I/O error.
+     */
+    default void requestFailed(RouteTarget target, long latencyNanos) {
+    }
+
+    /**
+     * The request was cancelled or ended without response nor I/O error.
+     */
+    default void requestCancelled(RouteTarget target) {
+    }
+
+    /**
+     * A connection to the target was opened.
+     *
+     * @param latencyNanos time to open the connection, TLS handshake included
+     */
+    default void connected(RouteTarget target, long latencyNanos) {
+    }
+
+    /**
+     * Opening a connection to the target failed.
+     */
+    default void connectFailed(RouteTarget target, long latencyNanos) {
+    }
+}
@@ -0,0 +1,129 @@
+package org.wikimedia.utils.http;
+
+import static java.util.Collections.unmodifiableMap;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpStatus;
+
+/**
+ * {@link RouteListener} keeping request counts, requests in flight, errors
+ * and latencies per route target.
+ *
+ * Errors are I/O errors and 5xx responses, response latencies are only
+ * recorded for requests that received a response. Connect latencies and
+ * errors are kept apart, for connection pools tracked by
+ * {@link RouteTracker#trackConnects}.
+ */
+@ParametersAreNonnullByDefault
+public class RouteMetrics implements RouteListener {
+    private final Map<HttpHost, Stats> stats = new ConcurrentHashMap<>();
+
+    @Override
+    public void requestStarted(RouteTarget target) {
+        Stats targetStats = stats(target);
+        targetStats.requests.increment();
+        targetStats.inFlight.increment();
+    }
+
+    @Override
+    public void responseReceived(RouteTarget target, int statusCode, long latencyNanos) {
+        Stats targetStats = stats(target);
+        targetStats.inFlight.decrement();
+        targetStats.latency.record(latencyNanos);
+        if (statusCode >= HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+            targetStats.errors.increment();
+        }
+    }
+
+    @Override
+    public void requestFailed(RouteTarget target, long latencyNanos) {
+        Stats targetStats = stats(target);
+        targetStats.inFlight.decrement();
+        targetStats.errors.increment();
+    }
+
+    @Override
+    public void requestCancelled(RouteTarget target) {
+        stats(target).inFlight.decrement();
+    }
+
+    @Override
+    public void connected(RouteTarget target, long latencyNanos) {
+        stats(target).connectLatency.record(latencyNanos);
+    }
+
+    @Override
+    public void connectFailed(RouteTarget target, long latencyNanos) {
+        stats(target).connectErrors.increment();
+    }
+
+    @CheckForNull
+    public Stats get(HttpHost target) {
+        return stats.get(target);
+    }
+
+    @Nonnull
+    public Map<HttpHost, Stats> asMap() {
+        return unmodifiableMap(stats);
+    }
+
+    private Stats stats(RouteTarget target) {
+        Stats targetStats = stats.get(target.getHost());
+        if (targetStats == null) {
+            targetStats = stats.computeIfAbsent(target.getHost(), host -> new Stats());
+        }
+        return targetStats;
+    }
+
+    /**
+     * Metrics of a route target.
+     */
+    public static final class Stats {
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder inFlight = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder connectErrors = new LongAdder();
+        private final LatencyHistogram connectLatency = new LatencyHistogram();
+
+        public long getRequests() {
+            return requests.sum();
+        }
+
+        public long getInFlight() {
+            return inFlight.sum();
+        }
+
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        /**
+         * Time from sending requests to receiving their response headers.
+         */
+        @Nonnull
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        public long getConnectErrors() {
+            return connectErrors.sum();
+        }
+
+        /**
+         * Time to open connections.
+         */
+        @Nonnull
+        public LatencyHistogram getConnectLatency() {
+            return connectLatency;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package org.wikimedia.utils.http;
+
+import static java.util.Collections.emptyMap;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import javax.annotation.Nonnull;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.GuardedBy;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.routing.HttpRoutePlanner;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Sizes the connection pool of the routes used by a {@link CustomRoutePlanner}.
+ *
+ * {@link PoolingHttpClientConnectionManager} applies the same default max
+ * per route to every route, which starves routes shared by many hosts (a
+ * proxy typically). This sets the max connections of the route of each
+ * target of the route table, and restores the default for targets that are
+ * no longer used when the routes change.
+ *
+ * Targets without an explicit port use the port of the request, see
+ * {@link RouteTarget}: they are sized on the default port of their scheme,
+ * and on the other ports when the planner returned by
+ * {@link #sizing(HttpRoutePlanner)} first routes a request to them.
+ */
+@ParametersAreNonnullByDefault
+public class RoutePoolSizer implements Consumer<RouteTable> {
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final int maxPerTarget;
+    private final Map<HttpHost, Integer> maxPerTargetOverrides;
+    /**
+     * Sized routes and the target they were sized for, written under the lock.
+     */
+    private final Map<HttpRoute, HttpHost> sizedRoutes = new ConcurrentHashMap<>();
+    @GuardedBy("this")
+    private Set<HttpHost> targets = new HashSet<>();
+
+    public RoutePoolSizer(PoolingHttpClientConnectionManager connectionManager, int maxPerTarget) {
+        this(connectionManager, maxPerTarget, emptyMap());
+    }
+
+    /**
+     * @param maxPerTarget max connections to each route target
+     * @param maxPerTargetOverrides max connections to specific route targets,
+     *                              as they appear in the routes
+     */
+    public RoutePoolSizer(PoolingHttpClientConnectionManager connectionManager, int maxPerTarget,
+                          Map<HttpHost, Integer> maxPerTargetOverrides) {
+        this.connectionManager = connectionManager;
+        this.maxPerTarget = maxPerTarget;
+        this.maxPerTargetOverrides = new HashMap<>(maxPerTargetOverrides);
+    }
+
+    /**
+     * Sizes the pool for the current routes of the planner and keeps it in
+     * sync when they change.
+     */
+    public void register(CustomRoutePlanner routePlanner) {
+        routePlanner.addListener(this);
+    }
+
+    /**
+     * Wraps the planner of the client using the pool to also size the
+     * routes of targets without explicit port on the port they are
+     * requested with.
+     */
+    @Nonnull
+    public HttpRoutePlanner sizing(HttpRoutePlanner routePlanner) {
+        return (host, request, context) -> plan(routePlanner, host, request, context);
+    }
+
+    private HttpRoute plan(HttpRoutePlanner routePlanner, HttpHost host, HttpRequest request, HttpContext context)
+            throws HttpException {
+        HttpRoute route = routePlanner.determineRoute(host, request, context);
+        Object target = context.getAttribute(CustomRoutePlanner.ROUTE_TARGET_ATTRIBUTE);
+        if (target instanceof RouteTarget && ((RouteTarget) target).getHost().getPort() == -1
+                && !sizedRoutes.containsKey(route)) {
+            size(route, ((RouteTarget) target).getHost());
+        }
+        return route;
+    }
+
+    private synchronized void size(HttpRoute route, HttpHost target) {
+        // The target may have been removed since the request was planned.
+        if (targets.contains(target) && sizedRoutes.putIfAbsent(route, target) == null) {
+            connectionManager.setMaxPerRoute(route, maxPerTarget(target));
+        }
+    }
+
+    @Override
+    public synchronized void accept(RouteTable routeTable) {
+        Set<HttpHost> newTargets = new HashSet<>();
+        routeTable.asMap().values().forEach(targets -> newTargets.addAll(targets.getHosts()));
+        Map<HttpRoute, HttpHost> routes = new HashMap<>();
+        // Routes sized on the port of requests to targets that are still used.
+        sizedRoutes.forEach((route, target) -> {
+            if (target.getPort() == -1 && newTargets.contains(target)) {
+                routes.put(route, target);
+            }
+        });
+        for (HttpHost target : newTargets) {
+            // HttpRoute uses the default port of the scheme of targets without port.
+            routes.putIfAbsent(new HttpRoute(target), target);
+        }
+        routes.forEach((route, target) -> connectionManager.setMaxPerRoute(route, maxPerTarget(target)));
+        sizedRoutes.keySet().removeAll(routes.keySet());
+        sizedRoutes.keySet().forEach(route ->
+                connectionManager.setMaxPerRoute(route, connectionManager.getDefaultMaxPerRoute()));
+        sizedRoutes.clear();
+        sizedRoutes.putAll(routes);
+        targets = newTargets;
+    }
+
+    private int maxPerTarget(HttpHost target) {
+        return maxPerTargetOverrides.getOrDefault(target, maxPerTarget);
+    }
+}
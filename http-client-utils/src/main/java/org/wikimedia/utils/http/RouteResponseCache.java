@@ -0,0 +1,314 @@
+package org.wikimedia.utils.http;
+
+import static java.util.Collections.newSetFromMap;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.GuardedBy;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.cache.CacheResponseStatus;
+import org.apache.http.client.cache.HttpCacheContext;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheStorage;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.impl.client.cache.CacheConfig;
+import org.apache.http.impl.client.cache.CachingExec;
+import org.apache.http.impl.client.cache.HeapResourceFactory;
+import org.apache.http.impl.execchain.ClientExecChain;
+import org.apache.http.message.BasicHttpRequest;
+
+/**
+ * Storage of the http cache for the routes of a {@link CustomRoutePlanner}
+ * which opted in to caching.
+ *
+ * Freshness and revalidation (Cache-Control, Expires, ETag and
+ * Last-Modified) are handled by the caching exec of httpclient-cache, see
+ * {@link RoutedHttpClientFactory#setCachedRoutes(String)}, which only sees
+ * the requests to the cached routes: requests to other routes bypass it
+ * entirely. This storage decides what is kept: responses of the cached
+ * routes, up to a total size in bytes, evicting the least recently used
+ * entries first.
+ *
+ * This is the only class of the factory depending on httpclient-cache, an
+ * optional dependency needed only when caching is enabled.
+ *
+ * Hits and misses are counted by the client built by the factory.
+ */
+@ParametersAreNonnullByDefault
+public class RouteResponseCache implements HttpCacheStorage, Consumer<RouteTable> {
+    /**
+     * Rough size of an entry besides its body and headers.
+     */
+    private static final int ENTRY_OVERHEAD = 256;
+
+    private final Set<String> cachedRoutes;
+    private final long maxBytes;
+
+    @GuardedBy("this")
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    @GuardedBy("this")
+    private long bytes;
+    private volatile RouteTable routeTable = RouteTable.of(Collections.emptyMap());
+    /**
+     * Targets of the cached routes in the current table, compared by identity.
+     */
+    private volatile Set<RouteTargets> cachedTargets = Collections.emptySet();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder validated = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param cachedRoutes the sources of the routes to cache, as in the route table
+     * @param maxBytes max total size of the cached entries
+     */
+    public RouteResponseCache(Set<String> cachedRoutes, long maxBytes) {
+        this.cachedRoutes = new HashSet<>(cachedRoutes);
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Follows the routes of the planner, entries of routes which are no
+     * longer cached are dropped when the routes change.
+     */
+    public void register(CustomRoutePlanner routePlanner) {
+        routePlanner.addListener(this);
+    }
+
+    public void unregister(CustomRoutePlanner routePlanner) {
+        routePlanner.removeListener(this);
+    }
+
+    @Override
+    public synchronized void accept(RouteTable newRouteTable) {
+        Set<RouteTargets> newCachedTargets = newSetFromMap(new IdentityHashMap<>());
+        for (String source : cachedRoutes) {
+            RouteTargets targets = newRouteTable.asMap().get(source);
+            if (targets != null) {
+                newCachedTargets.add(targets);
+            }
+        }
+        routeTable = newRouteTable;
+        cachedTargets = newCachedTargets;
+        for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Entry> entry = it.next();
+            if (!isCached(entry.getKey())) {
+                bytes -= entry.getValue().size;
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public void putEntry(String key, HttpCacheEntry entry) {
+        if (!isCached(key)) {
+            return;
+        }
+        long size = size(entry);
+        if (size > maxBytes) {
+            removeEntry(key);
+            return;
+        }
+        synchronized (this) {
+            remove(entries.put(key, new Entry(entry, size)));
+            bytes += size;
+            evict();
+        }
+    }
+
+    @Override
+    @CheckForNull
+    public synchronized HttpCacheEntry getEntry(String key) {
+        Entry entry = entries.get(key);
+        return entry == null ? null : entry.cacheEntry;
+    }
+
+    @Override
+    public synchronized void removeEntry(String key) {
+        remove(entries.remove(key));
+    }
+
+    @Override
+    public void updateEntry(String key, HttpCacheUpdateCallback callback) throws IOException {
+        // Called on revalidation, the body of the existing entry is usually reused
+        // so the callback runs outside of the lock.
+        HttpCacheEntry updated = callback.update(getEntry(key));
+        if (updated != null) {
+            putEntry(key, updated);
+        } else {
+            removeEntry(key);
+        }
+    }
+
+    /**
+     * Wraps the main exec of a client with the caching exec, for the
+     * requests to the cached routes only.
+     */
+    ClientExecChain decorateMainExec(ClientExecChain mainExec, long maxObjectBytes, boolean offHeap) {
+        ClientExecChain cachingExec = new CachingExec(mainExec,
+                offHeap ? DirectResourceFactory.INSTANCE : new HeapResourceFactory(), this,
+                CacheConfig.custom()
+                        .setMaxObjectSize(maxObjectBytes)
+                        .setSharedCache(true)
+                        .build());
+        return (route, request, context, execAware) -> {
+            if (!isCached(request.getTarget(), request)) {
+                return mainExec.execute(route, request, context, execAware);
+            }
+            CloseableHttpResponse response = cachingExec.execute(route, request, context, execAware);
+            record(HttpCacheContext.adapt(context).getCacheResponseStatus());
+            return response;
+        };
+    }
+
+    /**
+     * Counts the outcome of a request executed by the caching exec.
+     */
+    void record(@Nullable CacheResponseStatus status) {
+        if (status == null) {
+            return;
+        }
+        switch (status) {
+            case CACHE_HIT:
+                hits.increment();
+                break;
+            case CACHE_MISS:
+                misses.increment();
+                break;
+            case VALIDATED:
+                validated.increment();
+                break;
+            default:
+                // Responses generated by the cache module itself (504 on only-if-cached, ...)
+                break;
+        }
+    }
+
+    /**
+     * Requests served from the cache without contacting the server.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Requests to the cached routes sent to the server.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Requests served from the cache after a successful revalidation with the server.
+     */
+    public long getValidated() {
+        return validated.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @GuardedBy("this")
+    private void evict() {
+        for (Iterator<Entry> it = entries.values().iterator(); bytes > maxBytes && it.hasNext(); ) {
+            Entry eldest = it.next();
+            it.remove();
+            bytes -= eldest.size;
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Resources are not disposed: the body of an entry is shared with the
+     * entry replacing it on revalidation, and both heap and off-heap bodies
+     * are released by the garbage collector.
+     */
+    @GuardedBy("this")
+    private void remove(@Nullable Entry entry) {
+        if (entry != null) {
+            bytes -= entry.size;
+        }
+    }
+
+    /**
+     * Keys are the canonical uri of the request, prefixed by the variant
+     * between braces for responses varying on request headers.
+     */
+    private boolean isCached(String key) {
+        if (cachedRoutes.isEmpty()) {
+            return false;
+        }
+        int variantEnd = key.startsWith("{") ? key.indexOf('}') + 1 : 0;
+        URI uri;
+        try {
+            uri = URI.create(key.substring(variantEnd));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        if (uri.getHost() == null) {
+            return false;
+        }
+        String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+        return isCached(uri.getHost(), new BasicHttpRequest("GET", path));
+    }
+
+    /**
+     * Whether the request to this host uses a cached route.
+     */
+    boolean isCached(@Nullable HttpHost target, HttpRequest request) {
+        return target != null && isCached(target.getHostName(), request);
+    }
+
+    private boolean isCached(String hostName, HttpRequest request) {
+        RouteTargets targets = routeTable.lookup(hostName, request);
+        return targets != null && cachedTargets.contains(targets);
+    }
+
+    private static long size(HttpCacheEntry entry) {
+        long size = ENTRY_OVERHEAD;
+        if (entry.getResource() != null) {
+            size += entry.getResource().length();
+        }
+        for (Header header : entry.getAllHeaders()) {
+            size += 2L * (header.getName().length() + header.getValue().length());
+        }
+        return size;
+    }
+
+    private static final class Entry {
+        final HttpCacheEntry cacheEntry;
+        final long size;
+
+        Entry(HttpCacheEntry cacheEntry, long size) {
+            this.cacheEntry = cacheEntry;
+            this.size = size;
+        }
+    }
+}
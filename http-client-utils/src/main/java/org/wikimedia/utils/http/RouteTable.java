@@ -0,0 +1,221 @@
+package org.wikimedia.utils.http;
+
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.singletonList;
+import static java.util.Collections.unmodifiableMap;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * Immutable snapshot of the routes used by {@link CustomRoutePlanner}.
+ *
+ * Sources are either exact host names or wildcards of the form
+ * {@code *.suffix}, see {@link HostTrie}, optionally followed by a path
+ * prefix, for example {@code www.wikidata.org/sparql}, see {@link PathTrie}.
+ * Exact hosts take precedence over wildcards, then the longest matching path
+ * prefix wins over the routes of the host without path. A host whose routes
+ * do not match the request falls back to the next less specific wildcard,
+ * with {@code *.org} and {@code *.wikipedia.org/w/} routes,
+ * {@code en.wikipedia.org/wiki/X} uses the route of {@code *.org}.
+ *
+ * Host names are case insensitive, paths are not.
+ */
+@ParametersAreNonnullByDefault
+public final class RouteTable {
+    private final Map<String, RouteTargets> routes;
+    private final Map<String, HostRoutes> hostRoutes = new HashMap<>();
+    private final HostTrie<HostRoutes> wildcardRoutes = new HostTrie<>();
+
+    private RouteTable(Map<String, RouteTargets> routes) {
+        this.routes = unmodifiableMap(routes);
+        Map<String, HostRoutes> wildcards = new HashMap<>();
+        routes.forEach((source, targets) -> {
+            int pathStart = source.indexOf('/');
+            String host = normalize(pathStart >= 0 ? source.substring(0, pathStart) : source);
+            HostRoutes routesOfHost = (HostTrie.isWildcard(host) ? wildcards : hostRoutes)
+                    .computeIfAbsent(host, k -> new HostRoutes());
+            if (pathStart >= 0) {
+                routesOfHost.paths.put(source.substring(pathStart), targets);
+                routesOfHost.hasPaths = true;
+            } else {
+                routesOfHost.targets = targets;
+            }
+        });
+        wildcards.forEach(wildcardRoutes::put);
+        // *.wikipedia.org falls back to the most specific wildcard matching wikipedia.org
+        wildcards.forEach((pattern, routesOfHost) ->
+                routesOfHost.lessSpecific = wildcardRoutes.get(pattern.substring(HostTrie.WILDCARD_PREFIX.length())));
+    }
+
+    /**
+     * Table where each source is routed to a single target.
+     */
+    @Nonnull
+    public static RouteTable of(Map<String, HttpHost> routes) {
+        return build(singleTargets(routes), null);
+    }
+
+    /**
+     * Table where each source is balanced between one or more targets.
+     */
+    @Nonnull
+    public static RouteTable ofTargets(Map<String, List<HttpHost>> routes) {
+        return build(routes, null);
+    }
+
+    /**
+     * Copy of this table with an additional route, replacing any existing
+     * route for the same source. Other routes and targets are kept as is,
+     * see {@link #withRoutes(Map)}.
+     */
+    @Nonnull
+    public RouteTable withRoute(String source, List<HttpHost> targets) {
+        Map<String, List<HttpHost>> newRoutes = new HashMap<>();
+        routes.forEach((s, t) -> newRoutes.put(s, t.getHosts()));
+        newRoutes.put(source, targets);
+        return build(newRoutes, this);
+    }
+
+    /**
+     * Table with the given routes, keeping the state of the targets of this
+     * table: a target still used by the new routes keeps its health and
+     * requests in flight, and a route whose targets did not change is kept
+     * as is.
+     */
+    @Nonnull
+    public RouteTable withRoutes(Map<String, List<HttpHost>> newRoutes) {
+        return build(newRoutes, this);
+    }
+
+    @Nonnull
+    static Map<String, List<HttpHost>> singleTargets(Map<String, HttpHost> routes) {
+        Map<String, List<HttpHost>> targets = new HashMap<>();
+        routes.forEach((source, target) -> targets.put(source, singletonList(target)));
+        return targets;
+    }
+
+    /**
+     * Targets are interned: a host is represented by the same
+     * {@link RouteTarget} in all the routes of the table, so that a proxy
+     * shared by several routes has a single health and load.
+     */
+    private static RouteTable build(Map<String, List<HttpHost>> routes, @Nullable RouteTable previous) {
+        Map<HttpHost, RouteTarget> targetsByHost = new HashMap<>();
+        Map<String, RouteTargets> previousRoutes = previous != null ? previous.routes : emptyMap();
+        previousRoutes.values().forEach(targets -> targets.getTargets().forEach(
+                target -> targetsByHost.put(target.getHost(), target)));
+        Map<String, RouteTargets> newRoutes = new HashMap<>();
+        routes.forEach((source, hosts) -> {
+            RouteTargets unchanged = previousRoutes.get(source);
+            if (unchanged != null && unchanged.getHosts().equals(hosts)) {
+                newRoutes.put(source, unchanged);
+            } else {
+                newRoutes.put(source, new RouteTargets(hosts.stream()
+                        .map(host -> targetsByHost.computeIfAbsent(host, RouteTarget::new))
+                        .toArray(RouteTarget[]::new)));
+            }
+        });
+        return new RouteTable(newRoutes);
+    }
+
+    /**
+     * Targets for this host, ignoring the routes with a path prefix.
+     */
+    @CheckForNull
+    public RouteTargets lookup(String hostName) {
+        hostName = normalize(hostName);
+        HostRoutes routesOfHost = hostRoutes.get(hostName);
+        if (routesOfHost != null && routesOfHost.targets != null) {
+            return routesOfHost.targets;
+        }
+        for (routesOfHost = wildcardRoutes.get(hostName); routesOfHost != null;
+                routesOfHost = routesOfHost.lessSpecific) {
+            if (routesOfHost.targets != null) {
+                return routesOfHost.targets;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Targets for a request to this host.
+     */
+    @CheckForNull
+    public RouteTargets lookup(String hostName, HttpRequest request) {
+        hostName = normalize(hostName);
+        RouteTargets targets = lookup(hostRoutes.get(hostName), request);
+        for (HostRoutes wildcard = wildcardRoutes.get(hostName); targets == null && wildcard != null;
+                wildcard = wildcard.lessSpecific) {
+            targets = lookup(wildcard, request);
+        }
+        return targets;
+    }
+
+    @CheckForNull
+    private static RouteTargets lookup(@CheckForNull HostRoutes routesOfHost, HttpRequest request) {
+        if (routesOfHost == null) {
+            return null;
+        }
+        if (routesOfHost.hasPaths) {
+            // Only extract the path of requests to hosts having path routes, it may allocate.
+            RouteTargets targets = routesOfHost.paths.longestPrefixMatch(path(request));
+            if (targets != null) {
+                return targets;
+            }
+        }
+        return routesOfHost.targets;
+    }
+
+    /**
+     * Does not allocate for host names that are already in lower case.
+     */
+    private static String normalize(String hostName) {
+        return hostName.toLowerCase(Locale.ROOT);
+    }
+
+    private static String path(HttpRequest request) {
+        String path;
+        if (request instanceof HttpUriRequest) {
+            path = ((HttpUriRequest) request).getURI().getRawPath();
+        } else {
+            try {
+                path = URI.create(request.getRequestLine().getUri()).getRawPath();
+            } catch (IllegalArgumentException e) {
+                // Matches no path prefix, the request uses the routes of the host.
+                return "";
+            }
+        }
+        return path == null || path.isEmpty() ? "/" : path;
+    }
+
+    /**
+     * Routes by source, as given to build this table.
+     */
+    @Nonnull
+    public Map<String, RouteTargets> asMap() {
+        return routes;
+    }
+
+    private static final class HostRoutes {
+        RouteTargets targets;
+        boolean hasPaths;
+        final PathTrie<RouteTargets> paths = new PathTrie<>();
+        /**
+         * Routes of the next less specific wildcard, null for exact hosts.
+         */
+        HostRoutes lessSpecific;
+    }
+}
@@ -0,0 +1,129 @@
+package org.wikimedia.utils.http;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.routing.HttpRoute;
+
+/**
+ * One of the hosts a route can send requests to, with the number of
+ * requests currently in flight to it and its health, see {@link HealthPolicy}.
+ */
+@ParametersAreNonnullByDefault
+public final class RouteTarget {
+    private final HttpHost host;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    /**
+     * Number of ejections since the target last recovered, non zero while
+     * the target is ejected or on probation.
+     */
+    private volatile int ejections;
+    /**
+     * {@link System#nanoTime()} at which the current ejection ends.
+     */
+    private volatile long ejectedUntil;
+    /**
+     * Route used for all requests when the target has an explicit port.
+     */
+    private final HttpRoute fixedRoute;
+    /**
+     * Last route computed when the port comes from the requested host,
+     * in practice a target is almost always requested with the same port.
+     */
+    private volatile PortRoute lastRoute;
+
+    RouteTarget(HttpHost host) {
+        this.host = host;
+        this.fixedRoute = host.getPort() != -1 ? new HttpRoute(host) : null;
+    }
+
+    @Nonnull
+    public HttpHost getHost() {
+        return host;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Whether the target is not currently ejected.
+     */
+    public boolean isAvailable() {
+        return isAvailable(System.nanoTime());
+    }
+
+    boolean isAvailable(long now) {
+        return ejections == 0 || now - ejectedUntil >= 0;
+    }
+
+    void recordSuccess() {
+        if (consecutiveFailures.get() != 0) {
+            consecutiveFailures.set(0);
+        }
+        if (ejections != 0) {
+            synchronized (this) {
+                if (isAvailable(System.nanoTime())) {
+                    ejections = 0;
+                }
+            }
+        }
+    }
+
+    void recordFailure(HealthPolicy policy, long now) {
+        int failures = consecutiveFailures.incrementAndGet();
+        // A target on probation is ejected again on its first failure.
+        if (failures >= policy.getConsecutiveFailures() || ejections != 0) {
+            synchronized (this) {
+                // Failures of requests sent before the ejection do not extend it.
+                if (isAvailable(now)) {
+                    ejectedUntil = now + policy.ejectionNanos(ejections);
+                    ejections++;
+                    consecutiveFailures.set(0);
+                }
+            }
+        }
+    }
+
+    void acquire() {
+        inFlight.incrementAndGet();
+    }
+
+    void release() {
+        inFlight.decrementAndGet();
+    }
+
+    @Nonnull
+    HttpRoute route(HttpHost requestedHost) {
+        if (fixedRoute != null) {
+            return fixedRoute;
+        }
+        // If the dest port was not set, then assume we want use the same one as the request url.
+        int port = requestedHost.getPort();
+        PortRoute cached = lastRoute;
+        if (cached == null || cached.port != port) {
+            cached = new PortRoute(port, new HttpRoute(new HttpHost(host.getHostName(), port, host.getSchemeName())));
+            lastRoute = cached;
+        }
+        return cached.route;
+    }
+
+    @Override
+    public String toString() {
+        return host.toURI();
+    }
+
+    private static final class PortRoute {
+        final int port;
+        final HttpRoute route;
+
+        PortRoute(int port, HttpRoute route) {
+            this.port = port;
+            this.route = route;
+        }
+    }
+}
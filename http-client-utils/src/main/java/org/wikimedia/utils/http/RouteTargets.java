@@ -0,0 +1,117 @@
+package org.wikimedia.utils.http;
+
+import static java.util.Collections.unmodifiableList;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import org.apache.http.HttpHost;
+
+/**
+ * The targets a source host is routed to.
+ *
+ * When there are several targets, requests are balanced between them using
+ * the power of two choices: two targets are picked at random and the one
+ * with the fewest requests in flight is used. Targets ejected by their
+ * {@link HealthPolicy} are skipped.
+ */
+@ParametersAreNonnullByDefault
+public final class RouteTargets {
+    private final RouteTarget[] targets;
+
+    RouteTargets(List<HttpHost> hosts) {
+        this(hosts.stream().map(RouteTarget::new).toArray(RouteTarget[]::new));
+    }
+
+    /**
+     * @param targets possibly shared with other routes, see {@link RouteTable}
+     */
+    RouteTargets(RouteTarget[] targets) {
+        if (targets.length == 0) {
+            throw new IllegalArgumentException("A route needs at least one target");
+        }
+        this.targets = targets;
+    }
+
+    @Nonnull
+    public List<RouteTarget> getTargets() {
+        List<RouteTarget> list = new ArrayList<>(targets.length);
+        for (RouteTarget target : targets) {
+            list.add(target);
+        }
+        return unmodifiableList(list);
+    }
+
+    public int size() {
+        return targets.length;
+    }
+
+    @Nonnull
+    public List<HttpHost> getHosts() {
+        List<HttpHost> hosts = new ArrayList<>(targets.length);
+        for (RouteTarget target : targets) {
+            hosts.add(target.getHost());
+        }
+        return unmodifiableList(hosts);
+    }
+
+    /**
+     * Same as {@link #select(long)} but selects another available target
+     * than the avoided one if there is one.
+     */
+    @CheckForNull
+    RouteTarget select(long now, @Nullable RouteTarget avoided) {
+        RouteTarget target = select(now);
+        if (avoided == null || target != avoided) {
+            return target;
+        }
+        int avoidedIndex = 0;
+        while (avoidedIndex < targets.length && targets[avoidedIndex] != avoided) {
+            avoidedIndex++;
+        }
+        for (int i = 1; i < targets.length; i++) {
+            RouteTarget other = targets[(avoidedIndex + i) % targets.length];
+            if (other.isAvailable(now)) {
+                return other;
+            }
+        }
+        return target;
+    }
+
+    /**
+     * @return the selected target or null if all the targets are ejected
+     */
+    @CheckForNull
+    RouteTarget select(long now) {
+        if (targets.length == 1) {
+            return targets[0].isAvailable(now) ? targets[0] : null;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(targets.length);
+        // Pick the second target among the others so that both choices are distinct.
+        int second = (first + 1 + random.nextInt(targets.length - 1)) % targets.length;
+        boolean firstAvailable = targets[first].isAvailable(now);
+        boolean secondAvailable = targets[second].isAvailable(now);
+        if (firstAvailable && secondAvailable) {
+            return targets[second].getInFlight() < targets[first].getInFlight() ? targets[second] : targets[first];
+        } else if (firstAvailable) {
+            return targets[first];
+        } else if (secondAvailable) {
+            return targets[second];
+        }
+        // Both choices are ejected, fall back to the next available target.
+        for (int i = 1; i < targets.length; i++) {
+            RouteTarget target = targets[(second + i) % targets.length];
+            if (target.isAvailable(now)) {
+                return target;
+            }
+        }
+        return null;
+    }
+}
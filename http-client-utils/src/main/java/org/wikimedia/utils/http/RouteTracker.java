@@ -0,0 +1,294 @@
+package org.wikimedia.utils.http;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpRequestRetryHandler;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.LayeredConnectionSocketFactory;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+
+/**
+ * Tracks the requests sent to each {@link RouteTarget} selected by
+ * {@link CustomRoutePlanner}: the requests in flight, so that multi-target
+ * routes can balance requests between their targets, and the outcome of
+ * the requests, so that unhealthy targets are ejected according to the
+ * {@link HealthPolicy}. Requests are also reported to the registered
+ * {@link RouteListener}s.
+ *
+ * A request is counted from the moment it is sent on a connection until its
+ * response headers are received or it fails, see
+ * {@link #install(HttpClientBuilder)}: requests waiting for a connection and
+ * responses served from a response cache are not counted. Requests aborted
+ * by the caller are released as cancelled, without counting a failure.
+ * Tracking a request does not allocate.
+ *
+ * Connections are not counted as requests. Failures to connect are observed
+ * through the {@link HttpRequestRetryHandler}, which is why the tracker
+ * wraps the retry handler of the client. The time to connect is only
+ * reported to listeners for connection pools whose socket factories are
+ * wrapped by {@link #trackConnects(ConnectionSocketFactory)}.
+ *
+ * Requests of the async client are tracked by an {@link AsyncRouteTracker}.
+ */
+@ParametersAreNonnullByDefault
+public class RouteTracker implements HttpRequestRetryHandler {
+    /**
+     * Context attribute holding the last failure already counted against the target.
+     */
+    private static final String FAILURE_ATTRIBUTE = "org.wikimedia.utils.http.tracked-failure";
+
+    private final HttpRequestRetryHandler retryHandler;
+    private final HealthPolicy healthPolicy;
+    /**
+     * Copied on write, an array so that notifying listeners does not allocate an iterator.
+     */
+    private volatile RouteListener[] listeners = new RouteListener[0];
+
+    public RouteTracker() {
+        this(DefaultHttpRequestRetryHandler.INSTANCE, HealthPolicy.DEFAULT);
+    }
+
+    public RouteTracker(HttpRequestRetryHandler retryHandler) {
+        this(retryHandler, HealthPolicy.DEFAULT);
+    }
+
+    public RouteTracker(HttpRequestRetryHandler retryHandler, HealthPolicy healthPolicy) {
+        this.retryHandler = retryHandler;
+        this.healthPolicy = healthPolicy;
+    }
+
+    /**
+     * Registers a listener notified of the requests sent to route targets,
+     * see {@link RouteMetrics}.
+     */
+    public synchronized void addListener(RouteListener listener) {
+        RouteListener[] newListeners = Arrays.copyOf(listeners, listeners.length + 1);
+        newListeners[listeners.length] = listener;
+        listeners = newListeners;
+    }
+
+    /**
+     * Registers this tracker on the builder, replacing its request executor
+     * by one tracking the requests sent on connections, and its retry
+     * handler by this tracker (which delegates to the handler given at
+     * construction).
+     */
+    @Nonnull
+    public HttpClientBuilder install(HttpClientBuilder builder) {
+        return builder
+                .setRequestExecutor(requestExecutor())
+                .setRetryHandler(this);
+    }
+
+    @Nonnull
+    HttpRequestExecutor requestExecutor() {
+        return new TrackingRequestExecutor();
+    }
+
+    /**
+     * Wraps a socket factory of a connection pool to report the time to
+     * connect to route targets, TLS handshake included, see
+     * {@link RouteListener#connected(RouteTarget, long)}.
+     */
+    @Nonnull
+    public ConnectionSocketFactory trackConnects(ConnectionSocketFactory socketFactory) {
+        if (socketFactory instanceof LayeredConnectionSocketFactory) {
+            return new LayeredTrackingSocketFactory((LayeredConnectionSocketFactory) socketFactory);
+        }
+        return new TrackingSocketFactory(socketFactory);
+    }
+
+    /**
+     * Counts the failures to connect to the target. Failures of requests
+     * sent on a connection are already counted by the request executor.
+     */
+    @Override
+    public boolean retryRequest(IOException exception, int executionCount, HttpContext context) {
+        RouteTarget target = target(context);
+        if (target != null && context.removeAttribute(FAILURE_ATTRIBUTE) != exception && isTargetFailure(exception)) {
+            target.recordFailure(healthPolicy, System.nanoTime());
+        }
+        return retryHandler.retryRequest(exception, executionCount, context);
+    }
+
+    /**
+     * Whether a failure says something about the health of the target.
+     * Failures raised before connecting to the target do not: waiting too
+     * long for a connection from the local pool, or failing to resolve the
+     * target, which happens when the local resolver is down.
+     */
+    static boolean isTargetFailure(Exception exception) {
+        return !(exception instanceof ConnectionPoolTimeoutException) && !(exception instanceof UnknownHostException);
+    }
+
+    @CheckForNull
+    private static RouteTarget target(HttpContext context) {
+        Object target = context.getAttribute(CustomRoutePlanner.ROUTE_TARGET_ATTRIBUTE);
+        return target instanceof RouteTarget ? (RouteTarget) target : null;
+    }
+
+    /**
+     * A request to the target is sent, it must end with exactly one call to
+     * {@link #responded}, {@link #failed} or {@link #cancelled}.
+     */
+    void started(RouteTarget target) {
+        target.acquire();
+        for (RouteListener listener : listeners) {
+            listener.requestStarted(target);
+        }
+    }
+
+    void responded(RouteTarget target, int statusCode, long startNanos) {
+        target.release();
+        long now = System.nanoTime();
+        if (statusCode >= HttpStatus.SC_INTERNAL_SERVER_ERROR || healthPolicy.isSlow(now - startNanos)) {
+            target.recordFailure(healthPolicy, now);
+        } else {
+            target.recordSuccess();
+        }
+        for (RouteListener listener : listeners) {
+            listener.responseReceived(target, statusCode, now - startNanos);
+        }
+    }
+
+    void failed(RouteTarget target, Exception exception, long startNanos) {
+        target.release();
+        long now = System.nanoTime();
+        if (isTargetFailure(exception)) {
+            target.recordFailure(healthPolicy, now);
+        }
+        for (RouteListener listener : listeners) {
+            listener.requestFailed(target, now - startNanos);
+        }
+    }
+
+    void cancelled(RouteTarget target) {
+        target.release();
+        for (RouteListener listener : listeners) {
+            listener.requestCancelled(target);
+        }
+    }
+
+    /**
+     * Runs below the response cache and the retries, once per request sent
+     * on a connection. Proxy tunnels (CONNECT) are part of connecting and
+     * are not tracked.
+     */
+    private final class TrackingRequestExecutor extends HttpRequestExecutor {
+        @Override
+        public HttpResponse execute(HttpRequest request, HttpClientConnection conn, HttpContext context)
+                throws IOException, HttpException {
+            RouteTarget target = target(context);
+            if (target == null || "CONNECT".equals(request.getRequestLine().getMethod())) {
+                return super.execute(request, conn, context);
+            }
+            long start = System.nanoTime();
+            started(target);
+            boolean ended = false;
+            try {
+                HttpResponse response = super.execute(request, conn, context);
+                ended = true;
+                responded(target, response.getStatusLine().getStatusCode(), start);
+                return response;
+            } catch (IOException e) {
+                ended = true;
+                if (isAborted(request)) {
+                    // Aborted by the caller, the losing attempt of a hedged request for example:
+                    // released without counting a failure against the target.
+                    cancelled(target);
+                } else {
+                    context.setAttribute(FAILURE_ATTRIBUTE, e);
+                    failed(target, e, start);
+                }
+                throw e;
+            } finally {
+                if (!ended) {
+                    // Protocol errors, runtime exceptions.
+                    cancelled(target);
+                }
+            }
+        }
+    }
+
+    private static boolean isAborted(HttpRequest request) {
+        HttpRequest original = request instanceof HttpRequestWrapper
+                ? ((HttpRequestWrapper) request).getOriginal() : request;
+        return original instanceof HttpUriRequest && ((HttpUriRequest) original).isAborted();
+    }
+
+    private class TrackingSocketFactory implements ConnectionSocketFactory {
+        private final ConnectionSocketFactory delegate;
+
+        TrackingSocketFactory(ConnectionSocketFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Socket createSocket(HttpContext context) throws IOException {
+            return delegate.createSocket(context);
+        }
+
+        @Override
+        public Socket connectSocket(int connectTimeout, @Nullable Socket sock, HttpHost host,
+                                    InetSocketAddress remoteAddress, @Nullable InetSocketAddress localAddress,
+                                    HttpContext context) throws IOException {
+            RouteTarget target = target(context);
+            if (target == null) {
+                return delegate.connectSocket(connectTimeout, sock, host, remoteAddress, localAddress, context);
+            }
+            long start = System.nanoTime();
+            Socket socket;
+            try {
+                socket = delegate.connectSocket(connectTimeout, sock, host, remoteAddress, localAddress, context);
+            } catch (IOException e) {
+                long latency = System.nanoTime() - start;
+                for (RouteListener listener : listeners) {
+                    listener.connectFailed(target, latency);
+                }
+                throw e;
+            }
+            long latency = System.nanoTime() - start;
+            for (RouteListener listener : listeners) {
+                listener.connected(target, latency);
+            }
+            return socket;
+        }
+    }
+
+    private final class LayeredTrackingSocketFactory extends TrackingSocketFactory
+            implements LayeredConnectionSocketFactory {
+        private final LayeredConnectionSocketFactory delegate;
+
+        LayeredTrackingSocketFactory(LayeredConnectionSocketFactory delegate) {
+            super(delegate);
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context)
+                throws IOException {
+            return delegate.createLayeredSocket(socket, target, port, context);
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package org.wikimedia.utils.http;
+
+import static java.util.Arrays.stream;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.stream.Collectors.toSet;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.DefaultRoutePlanner;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+import org.apache.http.impl.execchain.ClientExecChain;
+
+/**
+ * Builds http clients routed by a {@link CustomRoutePlanner}, tracked by a
+ * {@link RouteTracker} and using a pooling connection manager sized for the
+ * routes, see {@link RoutePoolSizer}.
+ *
+ * Settings use the same format as the routes: key=value separated by commas
+ * with no space between them, for example: maxTotal=500,connectTimeout=2000
+ * All durations are in milliseconds. Supported keys, with their defaults:
+ * <ul>
+ *     <li>maxTotal=200: max connections of the pool</li>
+ *     <li>maxPerRoute=20: max connections to hosts that are not routed</li>
+ *     <li>maxPerTarget=50: max connections to each route target</li>
+ *     <li>maxPerTarget.&lt;target&gt;: max connections to a specific route target, written as in the routes,
+ *     for example: maxPerTarget.http://proxy.local:9999=200</li>
+ *     <li>connectTimeout=5000</li>
+ *     <li>connectionRequestTimeout=5000: max time to wait for a connection from the pool</li>
+ *     <li>socketTimeout=30000</li>
+ *     <li>keepAlive=30000: max time an idle connection is kept alive, unless the server asks for less</li>
+ *     <li>maxIdle=60000: idle connections are closed by a background thread after this time</li>
+ *     <li>validateAfterInactivity=2000: connections idle for longer are checked before being reused</li>
+ *     <li>timeToLive=-1: max lifetime of connections, -1 for no limit</li>
+ *     <li>dnsTtl=60000: how long DNS resolutions are cached, 0 to disable the cache,
+ *     see {@link CachingDnsResolver}</li>
+ *     <li>dnsRefreshAfter=0: age after which cached DNS resolutions are refreshed in the background,
+ *     lower than dnsTtl, 0 for 3/4 of dnsTtl</li>
+ *     <li>cacheMaxBytes=67108864: max size of the response cache, 0 to disable it,
+ *     see {@link #setCachedRoutes(String)}</li>
+ *     <li>cacheMaxObjectBytes=1048576: max size of a cached response body</li>
+ *     <li>cacheOffHeap=0: 1 to store cached response bodies off heap, see {@link DirectResourceFactory}</li>
+ * </ul>
+ */
+@ParametersAreNonnullByDefault
+public class RoutedHttpClientFactory {
+    private static final Map<String, Long> DEFAULT_SETTINGS = new HashMap<>();
+    private static final String MAX_PER_TARGET_PREFIX = "maxPerTarget.";
+
+    static {
+        DEFAULT_SETTINGS.put("maxTotal", 200L);
+        DEFAULT_SETTINGS.put("maxPerRoute", 20L);
+        DEFAULT_SETTINGS.put("maxPerTarget", 50L);
+        DEFAULT_SETTINGS.put("connectTimeout", 5000L);
+        DEFAULT_SETTINGS.put("connectionRequestTimeout", 5000L);
+        DEFAULT_SETTINGS.put("socketTimeout", 30000L);
+        DEFAULT_SETTINGS.put("keepAlive", 30000L);
+        DEFAULT_SETTINGS.put("maxIdle", 60000L);
+        DEFAULT_SETTINGS.put("validateAfterInactivity", 2000L);
+        DEFAULT_SETTINGS.put("timeToLive", -1L);
+        DEFAULT_SETTINGS.put("dnsTtl", 60000L);
+        DEFAULT_SETTINGS.put("dnsRefreshAfter", 0L);
+        DEFAULT_SETTINGS.put("cacheMaxBytes", 64L * 1024 * 1024);
+        DEFAULT_SETTINGS.put("cacheMaxObjectBytes", 1024L * 1024);
+        DEFAULT_SETTINGS.put("cacheOffHeap", 0L);
+    }
+
+    private final CustomRoutePlanner routePlanner;
+    private final RouteTracker routeTracker;
+    private final Map<String, Long> settings;
+    @Nullable
+    private volatile RouteResponseCache responseCache;
+
+    /**
+     * @param routes routes in the format of {@link CustomRoutePlanner#createTargetsMapFromString(String)}
+     * @param settings settings as described in the class documentation, empty for the defaults
+     */
+    public RoutedHttpClientFactory(String routes, String settings) {
+        this(new CustomRoutePlanner(RouteTable.ofTargets(CustomRoutePlanner.createTargetsMapFromString(routes)),
+                new DefaultRoutePlanner(DefaultSchemePortResolver.INSTANCE)), new RouteTracker(), settings);
+    }
+
+    public RoutedHttpClientFactory(CustomRoutePlanner routePlanner, RouteTracker routeTracker, String settings) {
+        this.routePlanner = routePlanner;
+        this.routeTracker = routeTracker;
+        this.settings = parseSettings(settings);
+    }
+
+    /**
+     * @throws IllegalArgumentException on unknown keys or invalid values
+     */
+    @Nonnull
+    static Map<String, Long> parseSettings(String settings) {
+        Map<String, Long> parsed = new HashMap<>(DEFAULT_SETTINGS);
+        if (settings.isEmpty()) {
+            return parsed;
+        }
+        Set<String> keys = new HashSet<>();
+        for (String pair : settings.split(",")) {
+            int separator = pair.indexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Http client setting without value: " + pair);
+            }
+            String key = pair.substring(0, separator);
+            if (!keys.add(key)) {
+                throw new IllegalArgumentException("Duplicate http client setting: " + key);
+            }
+            if (key.startsWith(MAX_PER_TARGET_PREFIX)) {
+                HttpHost.create(key.substring(MAX_PER_TARGET_PREFIX.length()));
+            } else if (!DEFAULT_SETTINGS.containsKey(key)) {
+                throw new IllegalArgumentException("Unknown http client setting: " + key);
+            }
+            parsed.put(key, Long.parseLong(pair.substring(separator + 1)));
+        }
+        long dnsTtl = parsed.get("dnsTtl");
+        if (dnsTtl < 0) {
+            throw new IllegalArgumentException("dnsTtl must be positive or 0, got " + dnsTtl);
+        }
+        long dnsRefreshAfter = dnsRefreshAfter(parsed);
+        if (dnsTtl > 0 && (dnsRefreshAfter <= 0 || dnsRefreshAfter >= dnsTtl)) {
+            throw new IllegalArgumentException("dnsRefreshAfter must be positive and lower than dnsTtl, got "
+                    + dnsRefreshAfter + " for a dnsTtl of " + dnsTtl);
+        }
+        return parsed;
+    }
+
+    /**
+     * The dnsRefreshAfter setting, or 3/4 of dnsTtl when not set.
+     */
+    private static long dnsRefreshAfter(Map<String, Long> settings) {
+        long refreshAfter = settings.get("dnsRefreshAfter");
+        return refreshAfter != 0 ? refreshAfter : settings.get("dnsTtl") * 3 / 4;
+    }
+
+    /**
+     * Max connections of the targets set by maxPerTarget.&lt;target&gt; settings.
+     */
+    @Nonnull
+    static Map<HttpHost, Integer> maxPerTargetOverrides(Map<String, Long> settings) {
+        Map<HttpHost, Integer> overrides = new HashMap<>();
+        settings.forEach((key, value) -> {
+            if (key.startsWith(MAX_PER_TARGET_PREFIX)) {
+                overrides.put(HttpHost.create(key.substring(MAX_PER_TARGET_PREFIX.length())), Math.toIntExact(value));
+            }
+        });
+        return overrides;
+    }
+
+    @Nonnull
+    public CustomRoutePlanner getRoutePlanner() {
+        return routePlanner;
+    }
+
+    @Nonnull
+    public RouteTracker getRouteTracker() {
+        return routeTracker;
+    }
+
+    /**
+     * Enables the response cache for some routes, caching is opt-in as not
+     * all backends send accurate cache headers. The cache is shared by the
+     * clients built afterwards, which cache GET and HEAD responses of these
+     * routes as allowed by their Cache-Control, Expires, ETag and
+     * Last-Modified headers, as a shared cache would. Requests to other
+     * routes bypass the cache entirely.
+     *
+     * Requires httpclient-cache, an optional dependency of this module.
+     *
+     * @param cachedRoutes sources of the routes to cache, separated by commas,
+     *                     for example: *.wikipedia.org,www.wikidata.org/wiki/
+     */
+    public void setCachedRoutes(String cachedRoutes) {
+        Set<String> sources = stream(cachedRoutes.split(",")).filter(s -> !s.isEmpty()).collect(toSet());
+        responseCache = sources.isEmpty() || longSetting("cacheMaxBytes") <= 0 ? null
+                : new RouteResponseCache(sources, longSetting("cacheMaxBytes"));
+    }
+
+    /**
+     * The response cache, with its hit and miss counts, if enabled by
+     * {@link #setCachedRoutes(String)}.
+     */
+    @CheckForNull
+    public RouteResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * A new builder with its own connection manager, for callers needing to
+     * customize the client further.
+     */
+    @Nonnull
+    public HttpClientBuilder builder() {
+        Builder builder = new Builder();
+        DnsResolver dnsResolver = SystemDefaultDnsResolver.INSTANCE;
+        if (longSetting("dnsTtl") > 0) {
+            CachingDnsResolver cachingDnsResolver = new CachingDnsResolver(longSetting("dnsTtl"),
+                    dnsRefreshAfter(settings));
+            cachingDnsResolver.register(routePlanner);
+            builder.closeWith(() -> {
+                cachingDnsResolver.unregister(routePlanner);
+                cachingDnsResolver.close();
+            });
+            dnsResolver = cachingDnsResolver;
+        }
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(
+                RegistryBuilder.<ConnectionSocketFactory>create()
+                        .register("http", routeTracker.trackConnects(PlainConnectionSocketFactory.getSocketFactory()))
+                        .register("https", routeTracker.trackConnects(SSLConnectionSocketFactory.getSocketFactory()))
+                        .build(),
+                null, null, dnsResolver, longSetting("timeToLive"), MILLISECONDS);
+        connectionManager.setMaxTotal(intSetting("maxTotal"));
+        connectionManager.setDefaultMaxPerRoute(intSetting("maxPerRoute"));
+        connectionManager.setValidateAfterInactivity(intSetting("validateAfterInactivity"));
+        RoutePoolSizer poolSizer = new RoutePoolSizer(connectionManager, intSetting("maxPerTarget"),
+                maxPerTargetOverrides(settings));
+        poolSizer.register(routePlanner);
+
+        // Stop following route changes once the client is closed.
+        builder.closeWith(() -> routePlanner.removeListener(poolSizer));
+        RouteResponseCache cache = responseCache;
+        if (cache != null) {
+            cache.register(routePlanner);
+            builder.closeWith(() -> cache.unregister(routePlanner));
+            long maxObjectBytes = longSetting("cacheMaxObjectBytes");
+            boolean offHeap = longSetting("cacheOffHeap") != 0;
+            builder.decorateMainExecWith(mainExec -> cache.decorateMainExec(mainExec, maxObjectBytes, offHeap));
+        }
+        builder.setRoutePlanner(poolSizer.sizing(routePlanner))
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(keepAliveStrategy(longSetting("keepAlive")))
+                .evictExpiredConnections()
+                .evictIdleConnections(longSetting("maxIdle"), MILLISECONDS)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(intSetting("connectTimeout"))
+                        .setConnectionRequestTimeout(intSetting("connectionRequestTimeout"))
+                        .setSocketTimeout(intSetting("socketTimeout"))
+                        .build());
+        return routeTracker.install(builder);
+    }
+
+    @Nonnull
+    public CloseableHttpClient build() {
+        return builder().build();
+    }
+
+    private long longSetting(String key) {
+        return settings.get(key);
+    }
+
+    private int intSetting(String key) {
+        return Math.toIntExact(longSetting(key));
+    }
+
+    private static ConnectionKeepAliveStrategy keepAliveStrategy(long maxKeepAlive) {
+        return (response, context) -> {
+            long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return keepAlive > 0 ? Math.min(keepAlive, maxKeepAlive) : maxKeepAlive;
+        };
+    }
+
+    /**
+     * Exposes {@link HttpClientBuilder#addCloseable} to release resources
+     * when the client is closed, and {@link HttpClientBuilder#decorateMainExec}
+     * to add the response cache without depending on httpclient-cache when
+     * it is disabled.
+     */
+    private static final class Builder extends HttpClientBuilder {
+        @Nullable
+        private UnaryOperator<ClientExecChain> mainExecDecorator;
+
+        void closeWith(Closeable closeable) {
+            addCloseable(closeable);
+        }
+
+        void decorateMainExecWith(UnaryOperator<ClientExecChain> decorator) {
+            mainExecDecorator = decorator;
+        }
+
+        @Override
+        protected ClientExecChain decorateMainExec(ClientExecChain mainExec) {
+            UnaryOperator<ClientExecChain> decorator = mainExecDecorator;
+            return decorator != null ? decorator.apply(mainExec) : mainExec;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package org.wikimedia.utils.http;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.impl.conn.DefaultRoutePlanner;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
+import org.junit.jupiter.api.Test;
+
+class CachingDnsResolverTest {
+
+    private final StubDnsResolver stubResolver = new StubDnsResolver();
+    private final List<Runnable> backgroundTasks = new ArrayList<>();
+    private long now;
+    private final CachingDnsResolver resolver = new CachingDnsResolver(stubResolver, 1000, 500,
+            backgroundTasks::add, () -> now);
+
+    @Test
+    void shouldCacheResolutions() throws UnknownHostException {
+        stubResolver.addresses.put("proxy.local", address(1));
+        assertThat(resolver.resolve("proxy.local")).containsExactly(address(1));
+        stubResolver.addresses.put("proxy.local", address(2));
+        now += MILLISECONDS.toNanos(499);
+        assertThat(resolver.resolve("proxy.local")).containsExactly(address(1));
+        assertThat(stubResolver.lookups).isEqualTo(1);
+        assertThat(backgroundTasks).isEmpty();
+    }
+
+    @Test
+    void shouldRefreshInBackground() throws UnknownHostException {
+        stubResolver.addresses.put("proxy.local", address(1));
+        resolver.resolve("proxy.local");
+        stubResolver.addresses.put("proxy.local", address(2));
+        now += MILLISECONDS.toNanos(500);
+        assertThat(resolver.resolve("proxy.local")).containsExactly(address(1));
+        assertThat(resolver.resolve("proxy.local")).containsExactly(address(1));
+        // Only one refresh is scheduled at a time
+        assertThat(backgroundTasks).hasSize(1);
+        backgroundTasks.get(0).run();
+        assertThat(resolver.resolve("proxy.local")).containsExactly(address(2));
+    }
+
+    @Test
+    void shouldResolveExpiredEntries() throws UnknownHostException {
+        stubResolver.addresses.put("proxy.local", address(1));
+        resolver.resolve("proxy.local");
+        stubResolver.addresses.put("proxy.local", address(2));
+        now += MILLISECONDS.toNanos(1000);
+        assertThat(resolver.resolve("proxy.local")).containsExactly(address(2));
+        assertThat(stubResolver.lookups).isEqualTo(2);
+    }
+
+    @Test
+    void shouldServeStaleEntriesOnFailure() throws UnknownHostException {
+        stubResolver.addresses.put("proxy.local", address(1));
+        resolver.resolve("proxy.local");
+        stubResolver.addresses.clear();
+        now += MILLISECONDS.toNanos(500);
+        resolver.resolve("proxy.local");
+        backgroundTasks.forEach(Runnable::run);
+        now += MILLISECONDS.toNanos(5000);
+        assertThat(resolver.resolve("proxy.local")).containsExactly(address(1));
+        assertThatThrownBy(() -> resolver.resolve("unknown.local")).isInstanceOf(UnknownHostException.class);
+    }
+
+    @Test
+    void shouldNotWaitForFailingResolver() throws UnknownHostException {
+        stubResolver.addresses.put("proxy.local", address(1));
+        resolver.resolve("proxy.local");
+        stubResolver.addresses.clear();
+        now += MILLISECONDS.toNanos(1000);
+        assertThat(resolver.resolve("proxy.local")).containsExactly(address(1));
+        assertThat(stubResolver.lookups).isEqualTo(2);
+        // The stale entry is served without lookup until the refresh time
+        now += MILLISECONDS.toNanos(499);
+        assertThat(resolver.resolve("proxy.local")).containsExactly(address(1));
+        assertThat(stubResolver.lookups).isEqualTo(2);
+        assertThat(backgroundTasks).isEmpty();
+        // Then refreshed in the background
+        now += MILLISECONDS.toNanos(1);
+        assertThat(resolver.resolve("proxy.local")).containsExactly(address(1));
+        assertThat(backgroundTasks).hasSize(1);
+        backgroundTasks.remove(0).run();
+        assertThat(stubResolver.lookups).isEqualTo(3);
+        assertThat(resolver.resolve("proxy.local")).containsExactly(address(1));
+        assertThat(backgroundTasks).isEmpty();
+
+        now += MILLISECONDS.toNanos(499);
+        resolver.resolve("proxy.local");
+        assertThat(backgroundTasks).isEmpty();
+        // Resolved again when the TTL since the first failure is over
+        stubResolver.addresses.put("proxy.local", address(2));
+        now += MILLISECONDS.toNanos(1);
+        assertThat(resolver.resolve("proxy.local")).containsExactly(address(2));
+        assertThat(stubResolver.lookups).isEqualTo(4);
+    }
+
+    @Test
+    void shouldDropUnusedEntries() throws UnknownHostException {
+        stubResolver.addresses.put("proxy.local", address(1));
+        stubResolver.addresses.put("unused.local", address(2));
+        stubResolver.addresses.put("used.local", address(3));
+        resolver.register(new CustomRoutePlanner(
+                CustomRoutePlanner.createMapFromString("www.wikidata.org=http://proxy.local:9999"),
+                new DefaultRoutePlanner(DefaultSchemePortResolver.INSTANCE)));
+        backgroundTasks.forEach(Runnable::run);
+        resolver.resolve("unused.local");
+        resolver.resolve("used.local");
+        assertThat(resolver.size()).isEqualTo(3);
+
+        now += MILLISECONDS.toNanos(600);
+        resolver.resolve("used.local");
+        now += MILLISECONDS.toNanos(600);
+        stubResolver.addresses.put("new.local", address(4));
+        resolver.resolve("new.local");
+        // Route targets are kept even when not used
+        assertThat(resolver.size()).isEqualTo(3);
+        int lookups = stubResolver.lookups;
+        resolver.resolve("unused.local");
+        assertThat(stubResolver.lookups).isEqualTo(lookups + 1);
+    }
+
+    @Test
+    void shouldPrefetchRouteTargets() throws UnknownHostException {
+        stubResolver.addresses.put("proxy.local", address(1));
+        CustomRoutePlanner routePlanner = new CustomRoutePlanner(
+                CustomRoutePlanner.createMapFromString("www.wikidata.org=http://proxy.local:9999"),
+                new DefaultRoutePlanner(DefaultSchemePortResolver.INSTANCE));
+        resolver.register(routePlanner);
+        backgroundTasks.forEach(Runnable::run);
+        assertThat(stubResolver.lookups).isEqualTo(1);
+        assertThat(resolver.resolve("proxy.local")).containsExactly(address(1));
+        assertThat(stubResolver.lookups).isEqualTo(1);
+    }
+
+    private static InetAddress address(int lastByte) throws UnknownHostException {
+        return InetAddress.getByAddress(new byte[] {10, 0, 0, (byte) lastByte});
+    }
+
+    private static final class StubDnsResolver implements DnsResolver {
+        final Map<String, InetAddress> addresses = new HashMap<>();
+        int lookups;
+
+        @Override
+        public InetAddress[] resolve(String host) throws UnknownHostException {
+            lookups++;
+            InetAddress address = addresses.get(host);
+            if (address == null) {
+                throw new UnknownHostException(host);
+            }
+            return new InetAddress[] {address};
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package org.wikimedia.utils.http;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.impl.conn.DefaultRoutePlanner;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+
+import ru.lanwen.wiremock.ext.WiremockResolver;
+import ru.lanwen.wiremock.ext.WiremockResolver.Wiremock;
+import ru.lanwen.wiremock.ext.WiremockUriResolver;
+import ru.lanwen.wiremock.ext.WiremockUriResolver.WiremockUri;
+
+@ExtendWith({
+    WiremockResolver.class,
+    WiremockUriResolver.class
+})
+class CustomRoutePlannerAsyncIntegrationTest {
+
+    @Test
+    void shouldSendRequestsThroughRoute(@Wiremock WireMockServer server, @WiremockUri String baseUri)
+            throws IOException, ExecutionException, InterruptedException {
+        server.stubFor(get(urlEqualTo("/my/resource"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("<response>Some content</response>")));
+
+        CustomRoutePlanner routePlanner = new CustomRoutePlanner(
+                RouteTable.ofTargets(CustomRoutePlanner.createTargetsMapFromString("routed.test=" + baseUri + "|" + baseUri)),
+                new DefaultRoutePlanner(DefaultSchemePortResolver.INSTANCE));
+        AsyncRouteTracker tracker = new AsyncRouteTracker(new RouteTracker());
+        try (CloseableHttpAsyncClient client = tracker.install(HttpAsyncClients.custom().setRoutePlanner(routePlanner)).build()) {
+            client.start();
+            List<Future<HttpResponse>> responses = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                HttpClientContext context = HttpClientContext.create();
+                responses.add(client.execute(new HttpGet("http://routed.test/my/resource"), context, tracker.track(context, null)));
+            }
+            for (Future<HttpResponse> response : responses) {
+                assertThat(EntityUtils.toString(response.get().getEntity())).isEqualTo("<response>Some content</response>");
+            }
+        }
+        assertThat(routePlanner.getRouteTable().lookup("routed.test").getTargets())
+                .allSatisfy(target -> assertThat(target.getInFlight()).isZero());
+    }
+
+    @Test
+    void shouldReleaseFailedRequests() throws IOException {
+        // Nothing listens on port 1, connections to it are refused
+        CustomRoutePlanner routePlanner = new CustomRoutePlanner(
+                CustomRoutePlanner.createMapFromString("routed.test=http://localhost:1"),
+                new DefaultRoutePlanner(DefaultSchemePortResolver.INSTANCE));
+        AsyncRouteTracker tracker = new AsyncRouteTracker(new RouteTracker());
+        try (CloseableHttpAsyncClient client = tracker.install(HttpAsyncClients.custom().setRoutePlanner(routePlanner)).build()) {
+            client.start();
+            HttpClientContext context = HttpClientContext.create();
+            Future<HttpResponse> response = client.execute(new HttpGet("http://routed.test/my/resource"), context,
+                    tracker.track(context, null));
+            assertThatThrownBy(response::get).isInstanceOf(ExecutionException.class);
+        }
+        assertThat(routePlanner.getRouteTable().lookup("routed.test").getTargets().get(0).getInFlight()).isZero();
+    }
+}
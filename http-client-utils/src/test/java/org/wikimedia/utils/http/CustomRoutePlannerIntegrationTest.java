@@ -9,8 +9,12 @@ import java.io.IOException;
 
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.HttpHostConnectException;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.DefaultRoutePlanner;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
 import org.apache.http.util.EntityUtils;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -42,4 +46,48 @@ import ru.lanwen.wiremock.ext.WiremockUriResolver.WiremockUri;
             assertThat(EntityUtils.toString(resp.getEntity())).isEqualTo("<response>Some content</response>");
         }
     }
+
+    @Test
+    void shouldSendRequestsThroughRoute(@Wiremock WireMockServer server, @WiremockUri String baseUri) throws IOException {
+        server.stubFor(get(urlEqualTo("/my/resource"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("<response>Some content</response>")));
+
+        CustomRoutePlanner routePlanner = new CustomRoutePlanner(
+                RouteTable.ofTargets(CustomRoutePlanner.createTargetsMapFromString("routed.test=" + baseUri)),
+                new DefaultRoutePlanner(DefaultSchemePortResolver.INSTANCE));
+        RouteTracker tracker = new RouteTracker();
+        CloseableHttpClient client = tracker.install(HttpClientBuilder.create().setRoutePlanner(routePlanner)).build();
+        try (CloseableHttpResponse resp = client.execute(new HttpGet("http://routed.test/my/resource"))) {
+            assertThat(EntityUtils.toString(resp.getEntity())).isEqualTo("<response>Some content</response>");
+        }
+        assertThat(routePlanner.getRouteTable().lookup("routed.test").getTargets().get(0).getInFlight()).isZero();
+    }
+
+    @Test
+    void shouldEjectUnreachableTarget(@Wiremock WireMockServer server, @WiremockUri String baseUri) throws IOException {
+        server.stubFor(get(urlEqualTo("/my/resource"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("<response>Some content</response>")));
+
+        // Nothing listens on port 1, connections to it are refused
+        CustomRoutePlanner routePlanner = new CustomRoutePlanner(
+                RouteTable.ofTargets(CustomRoutePlanner.createTargetsMapFromString("routed.test=http://localhost:1|" + baseUri)),
+                new DefaultRoutePlanner(DefaultSchemePortResolver.INSTANCE));
+        RouteTracker tracker = new RouteTracker(DefaultHttpRequestRetryHandler.INSTANCE, new HealthPolicy(1, 0, 60000, 60000));
+        CloseableHttpClient client = tracker.install(HttpClientBuilder.create().setRoutePlanner(routePlanner)).build();
+        int failures = 0;
+        for (int i = 0; i < 20; i++) {
+            try (CloseableHttpResponse resp = client.execute(new HttpGet("http://routed.test/my/resource"))) {
+                assertThat(EntityUtils.toString(resp.getEntity())).isEqualTo("<response>Some content</response>");
+            } catch (HttpHostConnectException e) {
+                failures++;
+            }
+        }
+        assertThat(failures).isLessThanOrEqualTo(1);
+        RouteTarget unreachable = routePlanner.getRouteTable().lookup("routed.test").getTargets().get(0);
+        assertThat(unreachable.isAvailable()).isEqualTo(failures == 0);
+    }
 }
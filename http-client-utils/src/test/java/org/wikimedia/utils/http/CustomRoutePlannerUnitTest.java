@@ -63,4 +63,89 @@ class CustomRoutePlannerUnitTest {
         HttpRoute actualRoute = customRoutePlanner.determineRoute(testHost, new HttpGet(), new BasicHttpContext());
         assertThat(actualRoute.getTargetHost()).isEqualTo(expectedHost);
     }
+
+    @Test
+    void shouldReuseComputedRoute() throws HttpException {
+        CustomRoutePlanner customRoutePlanner = new CustomRoutePlanner(customRouteMapTest, defaultRoutePlanner);
+        HttpHost testHost = new HttpHost("managed.test", 9999, "someScheme");
+        HttpRoute firstRoute = customRoutePlanner.determineRoute(testHost, new HttpGet(), new BasicHttpContext());
+        HttpRoute secondRoute = customRoutePlanner.determineRoute(testHost, new HttpGet(), new BasicHttpContext());
+        assertThat(secondRoute).isSameAs(firstRoute);
+    }
+
+    @Test
+    void shouldNotReuseRouteAfterAddRoute() throws HttpException {
+        CustomRoutePlanner customRoutePlanner = new CustomRoutePlanner(customRouteMapTest, defaultRoutePlanner);
+        HttpHost testHost = new HttpHost("managed.test", 9999, "someScheme");
+        customRoutePlanner.determineRoute(testHost, new HttpGet(), new BasicHttpContext());
+        customRoutePlanner.addRoute("managed.test", "https://other.test:8443");
+        HttpRoute actualRoute = customRoutePlanner.determineRoute(testHost, new HttpGet(), new BasicHttpContext());
+        assertThat(actualRoute.getTargetHost()).isEqualTo(new HttpHost("other.test", 8443, "https"));
+    }
+
+    @Test
+    void shouldUseWildcardRoute() throws HttpException {
+        customRouteMapTest.put("*.wikipedia.org", new HttpHost("wildcard.test", 7777, "http"));
+        CustomRoutePlanner customRoutePlanner = new CustomRoutePlanner(customRouteMapTest, defaultRoutePlanner);
+        customRoutePlanner.addRoute("*.m.wikipedia.org", "http://mobile.test:6666");
+        HttpRoute desktopRoute = customRoutePlanner.determineRoute(
+                new HttpHost("en.wikipedia.org", 443, "https"), new HttpGet(), new BasicHttpContext());
+        HttpRoute mobileRoute = customRoutePlanner.determineRoute(
+                new HttpHost("en.m.wikipedia.org", 443, "https"), new HttpGet(), new BasicHttpContext());
+        assertThat(desktopRoute.getTargetHost()).isEqualTo(new HttpHost("wildcard.test", 7777, "http"));
+        assertThat(mobileRoute.getTargetHost()).isEqualTo(new HttpHost("mobile.test", 6666, "http"));
+    }
+
+    @Test
+    void shouldIgnoreCaseOfHosts() throws HttpException {
+        customRouteMapTest.put("*.Wikipedia.org", new HttpHost("wildcard.test", 7777, "http"));
+        customRouteMapTest.put("WWW.wikidata.org/W/", new HttpHost("api.test", 5555, "http"));
+        CustomRoutePlanner customRoutePlanner = new CustomRoutePlanner(customRouteMapTest, defaultRoutePlanner);
+        assertThat(customRoutePlanner.determineRoute(new HttpHost("WWW.Wikipedia.org", 443, "https"), new HttpGet(),
+                new BasicHttpContext()).getTargetHost()).isEqualTo(new HttpHost("wildcard.test", 7777, "http"));
+        assertThat(customRoutePlanner.determineRoute(new HttpHost("www.WIKIDATA.org", 443, "https"),
+                new HttpGet("/W/api.php"), new BasicHttpContext()).getTargetHost())
+                .isEqualTo(new HttpHost("api.test", 5555, "http"));
+        // Paths are case sensitive
+        HttpHost wikidata = new HttpHost("www.wikidata.org", 443, "https");
+        assertThat(customRoutePlanner.determineRoute(wikidata, new HttpGet("/w/api.php"),
+                new BasicHttpContext()).getTargetHost()).isEqualTo(wikidata);
+        assertThat(customRoutePlanner.getRouteTable().lookup("Managed.Test")).isNotNull();
+    }
+
+    @Test
+    void shouldPreferExactRouteOverWildcard() throws HttpException {
+        customRouteMapTest.put("*.test", new HttpHost("wildcard.test", 7777, "http"));
+        CustomRoutePlanner customRoutePlanner = new CustomRoutePlanner(customRouteMapTest, defaultRoutePlanner);
+        HttpHost testHost = new HttpHost("managed.test", 9999, "someScheme");
+        HttpRoute actualRoute = customRoutePlanner.determineRoute(testHost, new HttpGet(), new BasicHttpContext());
+        assertThat(actualRoute.getTargetHost()).isEqualTo(new HttpHost("route.test", 9999, "someScheme"));
+    }
+
+    @Test
+    void shouldUsePathRoute() throws HttpException {
+        customRouteMapTest.put("www.wikidata.org", new HttpHost("wiki.test", 7777, "http"));
+        customRouteMapTest.put("www.wikidata.org/sparql", new HttpHost("query.test", 6666, "http"));
+        customRouteMapTest.put("*.wikipedia.org/w/", new HttpHost("api.test", 5555, "http"));
+        CustomRoutePlanner customRoutePlanner = new CustomRoutePlanner(customRouteMapTest, defaultRoutePlanner);
+        HttpHost wikidata = new HttpHost("www.wikidata.org", 443, "https");
+        HttpHost wikipedia = new HttpHost("en.wikipedia.org", 443, "https");
+        assertThat(customRoutePlanner.determineRoute(wikidata, new HttpGet("https://www.wikidata.org/sparql?query=x"),
+                new BasicHttpContext()).getTargetHost()).isEqualTo(new HttpHost("query.test", 6666, "http"));
+        assertThat(customRoutePlanner.determineRoute(wikidata, new HttpGet("https://www.wikidata.org/wiki/Q42"),
+                new BasicHttpContext()).getTargetHost()).isEqualTo(new HttpHost("wiki.test", 7777, "http"));
+        assertThat(customRoutePlanner.determineRoute(wikipedia, new HttpGet("/w/api.php"),
+                new BasicHttpContext()).getTargetHost()).isEqualTo(new HttpHost("api.test", 5555, "http"));
+        assertThat(customRoutePlanner.determineRoute(wikipedia, new HttpGet("/wiki/Main_Page"),
+                new BasicHttpContext()).getTargetHost()).isEqualTo(wikipedia);
+
+        // Requests not matching the paths of the most specific wildcard use a less specific one
+        customRoutePlanner.addRoute("*.org", "http://org.test:4444");
+        assertThat(customRoutePlanner.determineRoute(wikipedia, new HttpGet("/wiki/X"),
+                new BasicHttpContext()).getTargetHost()).isEqualTo(new HttpHost("org.test", 4444, "http"));
+        assertThat(customRoutePlanner.determineRoute(wikipedia, new HttpGet("/w/api.php"),
+                new BasicHttpContext()).getTargetHost()).isEqualTo(new HttpHost("api.test", 5555, "http"));
+        assertThat(customRoutePlanner.getRouteTable().lookup("en.wikipedia.org").getTargets().get(0).getHost())
+                .isEqualTo(new HttpHost("org.test", 4444, "http"));
+    }
 }
@@ -0,0 +1,47 @@
+package org.wikimedia.utils.http;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.apache.http.client.cache.InputLimit;
+import org.apache.http.client.cache.Resource;
+import org.apache.http.impl.client.cache.HeapResource;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.Test;
+
+class DirectResourceFactoryTest {
+
+    @Test
+    void shouldStoreBodies() throws IOException {
+        Resource resource = DirectResourceFactory.INSTANCE.generate("id",
+                new ByteArrayInputStream("some content".getBytes(UTF_8)), new InputLimit(1024));
+
+        assertThat(resource.length()).isEqualTo(12);
+        assertThat(read(resource)).isEqualTo("some content");
+        // Each stream reads the whole body.
+        assertThat(read(resource)).isEqualTo("some content");
+    }
+
+    @Test
+    void shouldStopAtTheLimit() throws IOException {
+        InputLimit limit = new InputLimit(4);
+        DirectResourceFactory.INSTANCE.generate("id", new ByteArrayInputStream("some content".getBytes(UTF_8)), limit);
+
+        assertThat(limit.isReached()).isTrue();
+    }
+
+    @Test
+    void shouldCopyHeapResources() throws IOException {
+        Resource copy = DirectResourceFactory.INSTANCE.copy("id", new HeapResource("some content".getBytes(UTF_8)));
+
+        assertThat(read(copy)).isEqualTo("some content");
+    }
+
+    private static String read(Resource resource) throws IOException {
+        return EntityUtils.toString(new InputStreamEntity(resource.getInputStream()), UTF_8);
+    }
+}
@@ -0,0 +1,58 @@
+package org.wikimedia.utils.http;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import org.junit.jupiter.api.Test;
+
+class HostTrieTest {
+
+    @Test
+    void shouldMatchSubdomains() {
+        HostTrie<String> trie = new HostTrie<>();
+        trie.put("*.wikipedia.org", "wiki");
+        assertThat(trie.get("en.wikipedia.org")).isEqualTo("wiki");
+        assertThat(trie.get("en.m.wikipedia.org")).isEqualTo("wiki");
+        assertThat(trie.get("wikipedia.org")).isNull();
+        assertThat(trie.get("en.wikipedia.com")).isNull();
+        assertThat(trie.get("enwikipedia.org")).isNull();
+    }
+
+    @Test
+    void shouldPreferMostSpecificPattern() {
+        HostTrie<String> trie = new HostTrie<>();
+        trie.put("*.org", "org");
+        trie.put("*.wikipedia.org", "wiki");
+        trie.put("*.m.wikipedia.org", "mobile");
+        assertThat(trie.get("en.m.wikipedia.org")).isEqualTo("mobile");
+        assertThat(trie.get("m.wikipedia.org")).isEqualTo("wiki");
+        assertThat(trie.get("en.wikipedia.org")).isEqualTo("wiki");
+        assertThat(trie.get("www.wikidata.org")).isEqualTo("org");
+    }
+
+    @Test
+    void shouldMatchAmongManySiblings() {
+        HostTrie<String> trie = new HostTrie<>();
+        String[] projects = {"wikipedia", "wikibooks", "wikidata", "wiki", "wikimedia", "wiktionary", "w"};
+        for (String project : projects) {
+            trie.put("*." + project + ".org", project);
+        }
+        for (String project : projects) {
+            assertThat(trie.get("en." + project + ".org")).isEqualTo(project);
+        }
+        assertThat(trie.get("en.wikinews.org")).isNull();
+        assertThat(trie.get("en.wikipedia.com")).isNull();
+    }
+
+    @Test
+    void shouldNotMatchWhenEmpty() {
+        assertThat(new HostTrie<String>().get("en.wikipedia.org")).isNull();
+    }
+
+    @Test
+    void shouldRejectInvalidPatterns() {
+        HostTrie<String> trie = new HostTrie<>();
+        assertThatThrownBy(() -> trie.put("wikipedia.org", "wiki")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> trie.put("*.", "wiki")).isInstanceOf(IllegalArgumentException.class);
+    }
+}
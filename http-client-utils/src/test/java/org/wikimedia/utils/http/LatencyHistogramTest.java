@@ -0,0 +1,44 @@
+package org.wikimedia.utils.http;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.data.Percentage.withPercentage;
+
+import org.junit.jupiter.api.Test;
+
+class LatencyHistogramTest {
+
+    @Test
+    void shouldMapValuesToContiguousBuckets() {
+        for (long value = 0; value < 100_000; value++) {
+            int index = LatencyHistogram.index(value);
+            assertThat(LatencyHistogram.lowestValue(index)).isLessThanOrEqualTo(value);
+            assertThat(LatencyHistogram.lowestValue(index + 1)).isGreaterThan(value);
+        }
+    }
+
+    @Test
+    void shouldReportPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(MILLISECONDS.toNanos(i));
+        }
+        assertThat(histogram.getCount()).isEqualTo(1000);
+        assertThat(histogram.getValueAtPercentile(50)).isCloseTo(MILLISECONDS.toNanos(500), withPercentage(7));
+        assertThat(histogram.getValueAtPercentile(99)).isCloseTo(MILLISECONDS.toNanos(990), withPercentage(7));
+        assertThat(histogram.getValueAtPercentile(100)).isCloseTo(MILLISECONDS.toNanos(1000), withPercentage(7));
+    }
+
+    @Test
+    void shouldReportExactSmallValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(MICROSECONDS.toNanos(7));
+        assertThat(histogram.getValueAtPercentile(50)).isEqualTo(MICROSECONDS.toNanos(7));
+    }
+
+    @Test
+    void shouldReportZeroWhenEmpty() {
+        assertThat(new LatencyHistogram().getValueAtPercentile(99)).isZero();
+    }
+}
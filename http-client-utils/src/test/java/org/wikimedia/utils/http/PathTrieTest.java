@@ -0,0 +1,42 @@
+package org.wikimedia.utils.http;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.Test;
+
+class PathTrieTest {
+
+    @Test
+    void shouldMatchLongestPrefix() {
+        PathTrie<String> trie = new PathTrie<>();
+        trie.put("/wiki/", "wiki");
+        trie.put("/wiki/Special:", "special");
+        trie.put("/sparql", "sparql");
+        assertThat(trie.longestPrefixMatch("/wiki/Q42")).isEqualTo("wiki");
+        assertThat(trie.longestPrefixMatch("/wiki/Special:EntityData")).isEqualTo("special");
+        assertThat(trie.longestPrefixMatch("/sparql")).isEqualTo("sparql");
+        assertThat(trie.longestPrefixMatch("/sparqlx")).isEqualTo("sparql");
+        assertThat(trie.longestPrefixMatch("/wiki")).isNull();
+        assertThat(trie.longestPrefixMatch("/w/api.php")).isNull();
+    }
+
+    @Test
+    void shouldIgnoreQueryAndFragment() {
+        PathTrie<String> trie = new PathTrie<>();
+        trie.put("/sparql", "sparql");
+        trie.put("/sparql?query", "query");
+        assertThat(trie.longestPrefixMatch("/sparql?query=SELECT")).isEqualTo("sparql");
+        assertThat(trie.longestPrefixMatch("/spa#rql")).isNull();
+    }
+
+    @Test
+    void shouldKeepChildrenSorted() {
+        PathTrie<String> trie = new PathTrie<>();
+        for (char c = 'z'; c >= 'a'; c--) {
+            trie.put("/" + c, String.valueOf(c));
+        }
+        for (char c = 'a'; c <= 'z'; c++) {
+            assertThat(trie.longestPrefixMatch("/" + c + "/path")).isEqualTo(String.valueOf(c));
+        }
+    }
+}
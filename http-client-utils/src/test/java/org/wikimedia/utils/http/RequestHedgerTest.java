@@ -0,0 +1,155 @@
+package org.wikimedia.utils.http;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+
+import ru.lanwen.wiremock.ext.WiremockResolver;
+import ru.lanwen.wiremock.ext.WiremockResolver.Wiremock;
+
+@ExtendWith(WiremockResolver.class)
+class RequestHedgerTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final WireMockServer fastServer = new WireMockServer(options().dynamicPort());
+
+    @BeforeEach
+    void startFastServer() {
+        fastServer.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+        fastServer.stop();
+    }
+
+    @Test
+    void shouldHedgeSlowRequests(@Wiremock WireMockServer slowServer) throws IOException {
+        slowServer.stubFor(get(urlEqualTo("/my/resource"))
+                .willReturn(aResponse().withStatus(200).withBody("slow").withFixedDelay(10000)));
+        fastServer.stubFor(get(urlEqualTo("/my/resource"))
+                .willReturn(aResponse().withStatus(200).withBody("fast")));
+
+        RoutedHttpClientFactory factory = new RoutedHttpClientFactory(
+                "routed.test=http://localhost:" + slowServer.port() + "|http://localhost:" + fastServer.port(), "");
+        List<RouteTarget> targets = factory.getRoutePlanner().getRouteTable().lookup("routed.test").getTargets();
+        HttpClientContext context = firstAttemptTo(targets.get(0), targets);
+        HttpGet request = new HttpGet("http://routed.test/my/resource");
+        try (CloseableHttpClient client = factory.build();
+             RequestHedger hedger = new RequestHedger(client, factory.getRoutePlanner(), executor, 95, 100, 1)) {
+            try (CloseableHttpResponse resp = hedger.execute(request, context)) {
+                assertThat(EntityUtils.toString(resp.getEntity())).isEqualTo("fast");
+            }
+        }
+        assertThat(context.getAttribute(CustomRoutePlanner.ROUTE_TARGET_ATTRIBUTE)).isSameAs(targets.get(1));
+        // Only the copy sent to the slow server was aborted
+        assertThat(request.isAborted()).isFalse();
+        slowServer.verify(1, getRequestedFor(urlEqualTo("/my/resource")));
+        fastServer.verify(1, getRequestedFor(urlEqualTo("/my/resource")));
+    }
+
+    @Test
+    void shouldReleaseLosingAttempts(@Wiremock WireMockServer slowServer) throws IOException, InterruptedException {
+        slowServer.stubFor(get(urlEqualTo("/my/resource"))
+                .willReturn(aResponse().withStatus(200).withBody("slow").withFixedDelay(10000)));
+        fastServer.stubFor(get(urlEqualTo("/my/resource"))
+                .willReturn(aResponse().withStatus(200).withBody("fast")));
+
+        RoutedHttpClientFactory factory = new RoutedHttpClientFactory(
+                "routed.test=http://localhost:" + slowServer.port() + "|http://localhost:" + fastServer.port(), "");
+        RouteMetrics metrics = new RouteMetrics();
+        factory.getRouteTracker().addListener(metrics);
+        List<RouteTarget> targets = factory.getRoutePlanner().getRouteTable().lookup("routed.test").getTargets();
+        try (CloseableHttpClient client = factory.build();
+             RequestHedger hedger = new RequestHedger(client, factory.getRoutePlanner(), executor, 95, 100, 1)) {
+            try (CloseableHttpResponse resp = hedger.execute(new HttpGet("http://routed.test/my/resource"),
+                    firstAttemptTo(targets.get(0), targets))) {
+                assertThat(EntityUtils.toString(resp.getEntity())).isEqualTo("fast");
+            }
+            // The losing attempt is released once its connection is aborted
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (inFlight(targets) > 0 && System.nanoTime() < deadline) {
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+        }
+        for (RouteTarget target : targets) {
+            assertThat(target.getInFlight()).isZero();
+            assertThat(target.isAvailable()).isTrue();
+            assertThat(metrics.get(target.getHost()).getInFlight()).isZero();
+            assertThat(metrics.get(target.getHost()).getErrors()).isZero();
+            assertThat(metrics.get(target.getHost()).getRequests()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    void shouldNotHedgeWithoutBudget(@Wiremock WireMockServer server) throws IOException {
+        server.stubFor(get(urlEqualTo("/my/resource"))
+                .willReturn(aResponse().withStatus(200).withBody("slow").withFixedDelay(300)));
+
+        RoutedHttpClientFactory factory = new RoutedHttpClientFactory(
+                "routed.test=http://localhost:" + server.port() + "|http://127.0.0.1:" + server.port(), "");
+        try (CloseableHttpClient client = factory.build();
+             RequestHedger hedger = new RequestHedger(client, factory.getRoutePlanner(), executor, 95, 10, 0)) {
+            try (CloseableHttpResponse resp = hedger.execute(new HttpGet("http://routed.test/my/resource"))) {
+                assertThat(EntityUtils.toString(resp.getEntity())).isEqualTo("slow");
+            }
+        }
+        server.verify(1, getRequestedFor(urlEqualTo("/my/resource")));
+    }
+
+    @Test
+    void shouldNotHedgeNonIdempotentRequests(@Wiremock WireMockServer server) throws IOException {
+        server.stubFor(post(urlEqualTo("/my/resource"))
+                .willReturn(aResponse().withStatus(200).withBody("slow").withFixedDelay(300)));
+
+        RoutedHttpClientFactory factory = new RoutedHttpClientFactory(
+                "routed.test=http://localhost:" + server.port() + "|http://127.0.0.1:" + server.port(), "");
+        try (CloseableHttpClient client = factory.build();
+             RequestHedger hedger = new RequestHedger(client, factory.getRoutePlanner(), executor, 95, 10, 1)) {
+            try (CloseableHttpResponse resp = hedger.execute(new HttpPost("http://routed.test/my/resource"))) {
+                assertThat(EntityUtils.toString(resp.getEntity())).isEqualTo("slow");
+            }
+        }
+        server.verify(1, postRequestedFor(urlEqualTo("/my/resource")));
+    }
+
+    /**
+     * Context of a request whose first attempt goes to the given target,
+     * hedges avoid the target of the first attempt instead.
+     */
+    private static HttpClientContext firstAttemptTo(RouteTarget target, List<RouteTarget> targets) {
+        HttpClientContext context = HttpClientContext.create();
+        context.setAttribute(CustomRoutePlanner.AVOIDED_TARGET_ATTRIBUTE,
+                targets.stream().filter(t -> t != target).findFirst().get());
+        return context;
+    }
+
+    private static long inFlight(List<RouteTarget> targets) {
+        return targets.stream().mapToLong(RouteTarget::getInFlight).sum();
+    }
+}
@@ -0,0 +1,165 @@
+package org.wikimedia.utils.http;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpHost;
+import org.apache.http.impl.conn.DefaultRoutePlanner;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class RouteFileWatcherTest {
+
+    private final CustomRoutePlanner routePlanner = new CustomRoutePlanner(emptyMap(),
+            new DefaultRoutePlanner(DefaultSchemePortResolver.INSTANCE));
+
+    @Test
+    void shouldReadRoutes(@TempDir Path dir) throws IOException {
+        Path routeFile = write(dir.resolve("routes"), "# comment", "", "www.wikidata.org=http://proxy.local:9999",
+                "*.wikipedia.org=https://proxy.local:8080|https://proxy2.local:8080");
+        assertThat(RouteFileWatcher.readRoutes(routeFile))
+                .containsEntry("www.wikidata.org", singletonList(new HttpHost("proxy.local", 9999, "http")))
+                .containsEntry("*.wikipedia.org", asList(new HttpHost("proxy.local", 8080, "https"),
+                        new HttpHost("proxy2.local", 8080, "https")))
+                .hasSize(2);
+    }
+
+    @Test
+    void shouldRejectInvalidRoutes(@TempDir Path dir) throws IOException {
+        Path invalidLine = write(dir.resolve("invalid"), "www.wikidata.org");
+        Path duplicate = write(dir.resolve("duplicate"), "www.wikidata.org=http://p1:9999", "www.wikidata.org=http://p2:9999");
+        Path empty = write(dir.resolve("empty"), "# no route");
+        assertThatThrownBy(() -> RouteFileWatcher.readRoutes(invalidLine)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> RouteFileWatcher.readRoutes(duplicate)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> RouteFileWatcher.readRoutes(empty)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void shouldReloadRoutesWhenFileChanges(@TempDir Path dir) throws IOException, InterruptedException {
+        Path routeFile = write(dir.resolve("routes"), "www.wikidata.org=http://p1:9999");
+        try (RouteFileWatcher watcher = new RouteFileWatcher(routeFile, routePlanner)) {
+            assertThat(targets("www.wikidata.org")).containsExactly(HttpHost.create("http://p1:9999"));
+
+            write(routeFile, "www.wikidata.org=http://p2:9999");
+            awaitTarget("www.wikidata.org", HttpHost.create("http://p2:9999"));
+
+            // Neither an invalid nor an empty file may replace valid routes
+            write(routeFile, "www.wikidata.org=http://p3:9999", "not a route");
+            awaitFailedReloads(watcher, 1);
+            write(routeFile);
+            awaitFailedReloads(watcher, 2);
+            assertThat(targets("www.wikidata.org")).containsExactly(HttpHost.create("http://p2:9999"));
+        }
+    }
+
+    @Test
+    void shouldNotInstallTruncatedFiles(@TempDir Path dir) throws IOException, InterruptedException {
+        Path routeFile = write(dir.resolve("routes"), "www.wikidata.org=http://p1:9999");
+        List<RouteTable> installed = new CopyOnWriteArrayList<>();
+        try (RouteFileWatcher watcher = new RouteFileWatcher(routeFile, routePlanner)) {
+            routePlanner.addListener(installed::add);
+            for (int i = 2; i <= 10; i++) {
+                write(routeFile, "www.wikidata.org=http://p" + i + ":9999");
+            }
+            awaitTarget("www.wikidata.org", HttpHost.create("http://p10:9999"));
+            assertThat(watcher.getFailedReloads()).isZero();
+        }
+        assertThat(installed).allSatisfy(table -> assertThat(table.lookup("www.wikidata.org")).isNotNull());
+    }
+
+    @Test
+    void shouldReloadRoutesMovedOverTheFile(@TempDir Path dir) throws IOException, InterruptedException {
+        Path routeFile = write(dir.resolve("routes"), "www.wikidata.org=http://p1:9999");
+        try (RouteFileWatcher watcher = new RouteFileWatcher(routeFile, routePlanner)) {
+            Path tmp = write(dir.resolve("routes.tmp"), "www.wikidata.org=http://p2:9999");
+            Files.move(tmp, routeFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            awaitTarget("www.wikidata.org", HttpHost.create("http://p2:9999"));
+            assertThat(watcher.getFailedReloads()).isZero();
+        }
+    }
+
+    @Test
+    void shouldKeepEjectedTargetsOnReload(@TempDir Path dir) throws IOException, InterruptedException {
+        Path routeFile = write(dir.resolve("routes"), "www.wikidata.org=http://p1:9999",
+                "*.wikipedia.org=http://p1:9999|http://p2:9999");
+        try (RouteFileWatcher watcher = new RouteFileWatcher(routeFile, routePlanner)) {
+            RouteTargets wikidata = routePlanner.getRouteTable().lookup("www.wikidata.org");
+            RouteTarget p1 = wikidata.getTargets().get(0);
+            // A proxy shared by several routes has a single state
+            assertThat(routePlanner.getRouteTable().lookup("en.wikipedia.org").getTargets().get(0)).isSameAs(p1);
+            p1.recordFailure(new HealthPolicy(1, 0, 60_000, 60_000), System.nanoTime());
+            assertThat(p1.isAvailable()).isFalse();
+
+            write(routeFile, "www.wikidata.org=http://p1:9999", "*.wikipedia.org=http://p1:9999|http://p2:9999",
+                    "www.mediawiki.org=http://p3:9999");
+            awaitTarget("www.mediawiki.org", HttpHost.create("http://p3:9999"));
+
+            assertThat(routePlanner.getRouteTable().lookup("www.wikidata.org")).isSameAs(wikidata);
+            assertThat(routePlanner.getRouteTable().lookup("en.wikipedia.org").getTargets().get(0)).isSameAs(p1);
+            assertThat(p1.isAvailable()).isFalse();
+            assertThat(watcher.getFailedReloads()).isZero();
+        }
+    }
+
+    @Test
+    void shouldNotCountListenerFailuresAsFailedReloads(@TempDir Path dir) throws IOException, InterruptedException {
+        Path routeFile = write(dir.resolve("routes"), "www.wikidata.org=http://p1:9999");
+        List<RouteTable> installed = new CopyOnWriteArrayList<>();
+        try (RouteFileWatcher watcher = new RouteFileWatcher(routeFile, routePlanner)) {
+            routePlanner.addListener(table -> {
+                if (!installed.isEmpty()) {
+                    throw new IllegalStateException("failing listener");
+                }
+            });
+            routePlanner.addListener(installed::add);
+            write(routeFile, "www.wikidata.org=http://p2:9999");
+            // The listeners following the failing one are notified
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (installed.size() < 2 && System.nanoTime() < deadline) {
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+            assertThat(installed).hasSize(2);
+            assertThat(targets("www.wikidata.org")).containsExactly(HttpHost.create("http://p2:9999"));
+            assertThat(watcher.getFailedReloads()).isZero();
+        }
+    }
+
+    private static void awaitFailedReloads(RouteFileWatcher watcher, int expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (watcher.getFailedReloads() < expected && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        assertThat(watcher.getFailedReloads()).isEqualTo(expected);
+    }
+
+    private void awaitTarget(String host, HttpHost expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!targets(host).equals(singletonList(expected)) && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        assertThat(targets(host)).containsExactly(expected);
+    }
+
+    private List<HttpHost> targets(String host) {
+        RouteTargets targets = routePlanner.getRouteTable().lookup(host);
+        return targets == null ? emptyList() : targets.getHosts();
+    }
+
+    private static Path write(Path file, String... lines) throws IOException {
+        return Files.write(file, String.join("\n", lines).getBytes(UTF_8));
+    }
+}
@@ -0,0 +1,63 @@
+package org.wikimedia.utils.http;
+
+import static java.util.Collections.singletonMap;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.routing.HttpRoutePlanner;
+import org.apache.http.impl.conn.DefaultRoutePlanner;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.BasicHttpContext;
+import org.junit.jupiter.api.Test;
+
+class RoutePoolSizerTest {
+
+    private final PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+    private final CustomRoutePlanner routePlanner = new CustomRoutePlanner(
+            CustomRoutePlanner.createMapFromString("www.wikidata.org=http://p1:9999,www.metawiki.org=http://p1:9999"),
+            new DefaultRoutePlanner(DefaultSchemePortResolver.INSTANCE));
+
+    @Test
+    void shouldSizeRoutesOfTargets() {
+        new RoutePoolSizer(connectionManager, 20, singletonMap(HttpHost.create("http://p3"), 50)).register(routePlanner);
+        assertThat(maxPerRoute("http://p1:9999")).isEqualTo(20);
+        routePlanner.addRoute("*.wikipedia.org", "http://p2:9999|http://p3");
+        assertThat(maxPerRoute("http://p2:9999")).isEqualTo(20);
+        assertThat(maxPerRoute("http://p3:80")).isEqualTo(50);
+    }
+
+    @Test
+    void shouldRestoreDefaultOfUnusedTargets() {
+        new RoutePoolSizer(connectionManager, 20).register(routePlanner);
+        routePlanner.setRoutes(CustomRoutePlanner.createMapFromString("www.wikidata.org=http://p2:9999"));
+        assertThat(maxPerRoute("http://p1:9999")).isEqualTo(connectionManager.getDefaultMaxPerRoute());
+        assertThat(maxPerRoute("http://p2:9999")).isEqualTo(20);
+    }
+
+    @Test
+    void shouldSizeTargetsWithoutPortOnRequestedPort() throws HttpException {
+        RoutePoolSizer poolSizer = new RoutePoolSizer(connectionManager, 20, singletonMap(HttpHost.create("http://p3"), 50));
+        poolSizer.register(routePlanner);
+        HttpRoutePlanner sizingPlanner = poolSizer.sizing(routePlanner);
+        routePlanner.addRoute("*.wikipedia.org", "http://p3");
+        HttpRoute route = sizingPlanner.determineRoute(new HttpHost("en.wikipedia.org", 8080, "http"), new HttpGet(),
+                new BasicHttpContext());
+        assertThat(route.getTargetHost()).isEqualTo(HttpHost.create("http://p3:8080"));
+        assertThat(connectionManager.getMaxPerRoute(route)).isEqualTo(50);
+        assertThat(maxPerRoute("http://p3:80")).isEqualTo(50);
+
+        // Kept while the target is used, restored once it is not
+        routePlanner.addRoute("www.mediawiki.org", "http://p4:9999");
+        assertThat(connectionManager.getMaxPerRoute(route)).isEqualTo(50);
+        routePlanner.setRoutes(CustomRoutePlanner.createMapFromString("www.wikidata.org=http://p2:9999"));
+        assertThat(connectionManager.getMaxPerRoute(route)).isEqualTo(connectionManager.getDefaultMaxPerRoute());
+    }
+
+    private int maxPerRoute(String target) {
+        return connectionManager.getMaxPerRoute(new HttpRoute(HttpHost.create(target)));
+    }
+}
@@ -0,0 +1,119 @@
+package org.wikimedia.utils.http;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.cache.CacheResponseStatus;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.impl.client.cache.HeapResource;
+import org.apache.http.impl.conn.DefaultRoutePlanner;
+import org.apache.http.message.BasicStatusLine;
+import org.junit.jupiter.api.Test;
+
+class RouteResponseCacheTest {
+
+    @Test
+    void shouldOnlyStoreCachedRoutes() {
+        RouteResponseCache cache = new RouteResponseCache(singleton("*.wikipedia.org"), 10_000);
+        cache.accept(routeTable());
+
+        cache.putEntry("http://en.wikipedia.org:80/wiki/Main", entry(100));
+        cache.putEntry("http://www.wikidata.org:80/wiki/Q42", entry(100));
+        cache.putEntry("http://not-routed.org:80/", entry(100));
+
+        assertThat(cache.getEntry("http://en.wikipedia.org:80/wiki/Main")).isNotNull();
+        assertThat(cache.getEntry("http://www.wikidata.org:80/wiki/Q42")).isNull();
+        assertThat(cache.getEntry("http://not-routed.org:80/")).isNull();
+        assertThat(cache.size()).isEqualTo(1);
+    }
+
+    @Test
+    void shouldStoreVariants() {
+        RouteResponseCache cache = new RouteResponseCache(singleton("*.wikipedia.org"), 10_000);
+        cache.accept(routeTable());
+
+        cache.putEntry("{Accept-Encoding=gzip}http://en.wikipedia.org:80/wiki/Main", entry(100));
+
+        assertThat(cache.getEntry("{Accept-Encoding=gzip}http://en.wikipedia.org:80/wiki/Main")).isNotNull();
+    }
+
+    @Test
+    void shouldEvictLeastRecentlyUsedEntries() {
+        RouteResponseCache cache = new RouteResponseCache(singleton("*.wikipedia.org"), 2_000);
+        cache.accept(routeTable());
+
+        cache.putEntry("http://en.wikipedia.org:80/a", entry(700));
+        cache.putEntry("http://en.wikipedia.org:80/b", entry(700));
+        cache.getEntry("http://en.wikipedia.org:80/a");
+        cache.putEntry("http://en.wikipedia.org:80/c", entry(700));
+
+        assertThat(cache.getEntry("http://en.wikipedia.org:80/a")).isNotNull();
+        assertThat(cache.getEntry("http://en.wikipedia.org:80/b")).isNull();
+        assertThat(cache.getEntry("http://en.wikipedia.org:80/c")).isNotNull();
+        assertThat(cache.getEvictions()).isEqualTo(1);
+        assertThat(cache.getBytes()).isLessThanOrEqualTo(2_000);
+    }
+
+    @Test
+    void shouldNotStoreEntriesLargerThanTheCache() {
+        RouteResponseCache cache = new RouteResponseCache(singleton("*.wikipedia.org"), 2_000);
+        cache.accept(routeTable());
+
+        cache.putEntry("http://en.wikipedia.org:80/a", entry(100));
+        cache.putEntry("http://en.wikipedia.org:80/a", entry(5_000));
+
+        assertThat(cache.getEntry("http://en.wikipedia.org:80/a")).isNull();
+        assertThat(cache.getBytes()).isZero();
+    }
+
+    @Test
+    void shouldDropEntriesOfRemovedRoutes() {
+        CustomRoutePlanner planner = new CustomRoutePlanner(routeTable(), new DefaultRoutePlanner(null));
+        RouteResponseCache cache = new RouteResponseCache(singleton("*.wikipedia.org"), 10_000);
+        cache.register(planner);
+        cache.putEntry("http://en.wikipedia.org:80/a", entry(100));
+
+        planner.setRoutes(new HashMap<>());
+
+        assertThat(cache.size()).isZero();
+        assertThat(cache.getBytes()).isZero();
+    }
+
+    @Test
+    void shouldCountHitsAndMisses() {
+        RouteResponseCache cache = new RouteResponseCache(singleton("*.wikipedia.org"), 10_000);
+        cache.record(CacheResponseStatus.CACHE_MISS);
+        cache.record(CacheResponseStatus.CACHE_HIT);
+        cache.record(CacheResponseStatus.CACHE_HIT);
+        cache.record(CacheResponseStatus.VALIDATED);
+        cache.record(null);
+
+        assertThat(cache.getHits()).isEqualTo(2);
+        assertThat(cache.getMisses()).isEqualTo(1);
+        assertThat(cache.getValidated()).isEqualTo(1);
+    }
+
+    private static RouteTable routeTable() {
+        Map<String, List<HttpHost>> routes = new HashMap<>();
+        routes.put("*.wikipedia.org", asList(new HttpHost("10.0.0.1"), new HttpHost("10.0.0.2")));
+        routes.put("www.wikidata.org", singletonList(new HttpHost("10.0.0.3")));
+        return RouteTable.ofTargets(routes);
+    }
+
+    private static HttpCacheEntry entry(int bodySize) {
+        Date now = new Date();
+        return new HttpCacheEntry(now, now, new BasicStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK"),
+                new Header[0], new HeapResource(new byte[bodySize]));
+    }
+}
@@ -0,0 +1,74 @@
+package org.wikimedia.utils.http;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.apache.http.HttpHost;
+import org.junit.jupiter.api.Test;
+
+class RouteTargetTest {
+
+    private final HealthPolicy policy = new HealthPolicy(3, 100, 1000, 3000);
+    private final RouteTarget target = new RouteTarget(HttpHost.create("http://p1:9999"));
+    private final long start = System.nanoTime();
+
+    @Test
+    void shouldEjectAfterConsecutiveFailures() {
+        target.recordFailure(policy, start);
+        target.recordFailure(policy, start);
+        target.recordSuccess();
+        target.recordFailure(policy, start);
+        target.recordFailure(policy, start);
+        assertThat(target.isAvailable(start)).isTrue();
+        target.recordFailure(policy, start);
+        assertThat(target.isAvailable(start)).isFalse();
+        assertThat(target.isAvailable(start + MILLISECONDS.toNanos(999))).isFalse();
+        assertThat(target.isAvailable(start + MILLISECONDS.toNanos(1000))).isTrue();
+    }
+
+    @Test
+    void shouldDoubleEjectionOnFailureDuringProbation() {
+        long now = eject(start);
+        // Re-admitted on probation, the first failure ejects again for twice as long
+        now += MILLISECONDS.toNanos(1000);
+        target.recordFailure(policy, now);
+        assertThat(target.isAvailable(now + MILLISECONDS.toNanos(1999))).isFalse();
+        assertThat(target.isAvailable(now + MILLISECONDS.toNanos(2000))).isTrue();
+        // Then capped to the max ejection time
+        now += MILLISECONDS.toNanos(2000);
+        target.recordFailure(policy, now);
+        assertThat(target.isAvailable(now + MILLISECONDS.toNanos(2999))).isFalse();
+        assertThat(target.isAvailable(now + MILLISECONDS.toNanos(3000))).isTrue();
+    }
+
+    @Test
+    void shouldNotExtendEjectionWithFailuresOfEarlierRequests() {
+        long now = eject(start);
+        target.recordFailure(policy, now + MILLISECONDS.toNanos(500));
+        assertThat(target.isAvailable(now + MILLISECONDS.toNanos(1000))).isTrue();
+    }
+
+    @Test
+    void shouldRecoverAfterSuccessOnProbation() {
+        eject(System.nanoTime() - MILLISECONDS.toNanos(1000));
+        target.recordSuccess();
+        long now = System.nanoTime();
+        target.recordFailure(policy, now);
+        assertThat(target.isAvailable(now)).isTrue();
+    }
+
+    @Test
+    void shouldDetectSlowResponses() {
+        assertThat(policy.isSlow(MILLISECONDS.toNanos(100))).isFalse();
+        assertThat(policy.isSlow(MILLISECONDS.toNanos(101))).isTrue();
+        assertThat(HealthPolicy.DEFAULT.isSlow(Long.MAX_VALUE)).isFalse();
+    }
+
+    private long eject(long now) {
+        for (int i = 0; i < policy.getConsecutiveFailures(); i++) {
+            target.recordFailure(policy, now);
+        }
+        assertThat(target.isAvailable(now)).isFalse();
+        return now;
+    }
+}
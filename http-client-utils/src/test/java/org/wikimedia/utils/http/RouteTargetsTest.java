@@ -0,0 +1,60 @@
+package org.wikimedia.utils.http;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import org.apache.http.HttpHost;
+import org.junit.jupiter.api.Test;
+
+class RouteTargetsTest {
+
+    @Test
+    void shouldSelectSingleTarget() {
+        RouteTargets targets = new RouteTargets(singletonList(HttpHost.create("http://p1:9999")));
+        assertThat(targets.select(System.nanoTime()).getHost()).isEqualTo(HttpHost.create("http://p1:9999"));
+    }
+
+    @Test
+    void shouldPreferTargetWithFewerRequestsInFlight() {
+        RouteTargets targets = new RouteTargets(asList(HttpHost.create("http://p1:9999"), HttpHost.create("http://p2:9999")));
+        targets.getTargets().get(0).acquire();
+        for (int i = 0; i < 100; i++) {
+            assertThat(targets.select(System.nanoTime()).getHost()).isEqualTo(HttpHost.create("http://p2:9999"));
+        }
+    }
+
+    @Test
+    void shouldNeverSelectTheBusiestTarget() {
+        RouteTargets targets = new RouteTargets(asList(HttpHost.create("http://p1:9999"),
+                HttpHost.create("http://p2:9999"), HttpHost.create("http://p3:9999")));
+        targets.getTargets().get(1).acquire();
+        targets.getTargets().get(1).acquire();
+        targets.getTargets().get(2).acquire();
+        for (int i = 0; i < 100; i++) {
+            assertThat(targets.select(System.nanoTime()).getHost()).isNotEqualTo(HttpHost.create("http://p2:9999"));
+        }
+    }
+
+    @Test
+    void shouldRequireATarget() {
+        assertThatThrownBy(() -> new RouteTargets(emptyList())).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void shouldSkipEjectedTargets() {
+        RouteTargets targets = new RouteTargets(asList(HttpHost.create("http://p1:9999"),
+                HttpHost.create("http://p2:9999"), HttpHost.create("http://p3:9999")));
+        HealthPolicy policy = new HealthPolicy(1, 0, 1000, 1000);
+        long now = System.nanoTime();
+        targets.getTargets().get(0).recordFailure(policy, now);
+        targets.getTargets().get(2).recordFailure(policy, now);
+        for (int i = 0; i < 100; i++) {
+            assertThat(targets.select(now).getHost()).isEqualTo(HttpHost.create("http://p2:9999"));
+        }
+        targets.getTargets().get(1).recordFailure(policy, now);
+        assertThat(targets.select(now)).isNull();
+    }
+}
@@ -0,0 +1,248 @@
+package org.wikimedia.utils.http;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpConnectionMetrics;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.ProtocolException;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.impl.conn.DefaultRoutePlanner;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+import org.junit.jupiter.api.Test;
+
+class RouteTrackerTest {
+
+    private final CustomRoutePlanner routePlanner = new CustomRoutePlanner(
+            RouteTable.ofTargets(CustomRoutePlanner.createTargetsMapFromString("managed.test=http://route.test:9999")),
+            new DefaultRoutePlanner(DefaultSchemePortResolver.INSTANCE));
+    private final RouteTarget target = routePlanner.getRouteTable().lookup("managed.test").getTargets().get(0);
+    private final RouteTracker tracker = new RouteTracker((exception, executionCount, context) -> executionCount < 2,
+            new HealthPolicy(2, 0, 10_000, 60_000));
+    private final HttpRequestExecutor executor = tracker.requestExecutor();
+
+    @Test
+    void shouldCountRequestUntilResponse() throws IOException, HttpException {
+        HttpContext context = plan("managed.test");
+        FakeConnection connection = new FakeConnection(() -> {
+            assertThat(target.getInFlight()).isEqualTo(1);
+            return response(HttpStatus.SC_OK);
+        });
+        executor.execute(new HttpGet("/"), connection, context);
+        assertThat(target.getInFlight()).isZero();
+    }
+
+    @Test
+    void shouldReleaseFailedRequests() throws HttpException {
+        HttpContext context = plan("managed.test");
+        IOException failure = new IOException("connection reset");
+        assertThatThrownBy(() -> executor.execute(new HttpGet("/"), new FakeConnection(() -> {
+            throw failure;
+        }), context)).isSameAs(failure);
+        assertThat(target.getInFlight()).isZero();
+        // The retry handler sees the same failure, it must not be counted twice
+        assertThat(tracker.retryRequest(failure, 1, context)).isTrue();
+        assertThat(target.isAvailable()).isTrue();
+    }
+
+    @Test
+    void shouldReleaseRequestsEndingWithoutResponse() throws HttpException {
+        RouteMetrics metrics = new RouteMetrics();
+        tracker.addListener(metrics);
+        HttpContext context = plan("managed.test");
+        assertThatThrownBy(() -> executor.execute(new HttpGet("/"), new FakeConnection(() -> {
+            throw new ProtocolException("invalid response");
+        }), context)).isInstanceOf(ProtocolException.class);
+        assertThat(target.getInFlight()).isZero();
+        assertThat(metrics.get(target.getHost()).getInFlight()).isZero();
+        assertThat(metrics.get(target.getHost()).getErrors()).isZero();
+    }
+
+    @Test
+    void shouldCountConnectFailures() throws HttpException {
+        for (int i = 0; i < 2; i++) {
+            tracker.retryRequest(new ConnectException("Connection refused"), 1, plan("managed.test"));
+        }
+        assertThat(target.isAvailable()).isFalse();
+    }
+
+    @Test
+    void shouldNotEjectTargetsOnLocalFailures() throws HttpException {
+        for (int i = 0; i < 3; i++) {
+            tracker.retryRequest(new ConnectionPoolTimeoutException("Timeout waiting for connection from pool"), 1,
+                    plan("managed.test"));
+            tracker.retryRequest(new UnknownHostException("route.test"), 1, plan("managed.test"));
+        }
+        assertThat(target.isAvailable()).isTrue();
+    }
+
+    @Test
+    void shouldIgnoreRequestsOnDefaultRoute() throws IOException, HttpException {
+        HttpContext context = plan("managed.test");
+        routePlanner.determineRoute(new HttpHost("other.test"), new HttpGet(), context);
+        executor.execute(new HttpGet("/"), new FakeConnection(() -> {
+            assertThat(target.getInFlight()).isZero();
+            return response(HttpStatus.SC_OK);
+        }), context);
+    }
+
+    @Test
+    void shouldSelectTargetOfMultiTargetRoute() throws HttpException {
+        routePlanner.addRoute("balanced.test", "http://p1:9999|http://p2:9999");
+        HttpContext context = new BasicHttpContext();
+        routePlanner.determineRoute(new HttpHost("balanced.test"), new HttpGet(), context);
+        RouteTarget selected = (RouteTarget) context.getAttribute(CustomRoutePlanner.ROUTE_TARGET_ATTRIBUTE);
+        assertThat(routePlanner.getRouteTable().lookup("balanced.test").getTargets()).contains(selected);
+    }
+
+    @Test
+    void shouldReportRequestsToListeners() throws IOException, HttpException {
+        RouteMetrics metrics = new RouteMetrics();
+        tracker.addListener(metrics);
+        executor.execute(new HttpGet("/"), new FakeConnection(() -> {
+            assertThat(metrics.get(target.getHost()).getInFlight()).isEqualTo(1);
+            return response(HttpStatus.SC_SERVICE_UNAVAILABLE);
+        }), plan("managed.test"));
+        executor.execute(new HttpGet("/"), new FakeConnection(() -> response(HttpStatus.SC_OK)), plan("managed.test"));
+        assertThatThrownBy(() -> executor.execute(new HttpGet("/"), new FakeConnection(() -> {
+            throw new IOException("connection reset");
+        }), plan("managed.test"))).isInstanceOf(IOException.class);
+
+        RouteMetrics.Stats stats = metrics.get(target.getHost());
+        assertThat(stats.getRequests()).isEqualTo(3);
+        assertThat(stats.getInFlight()).isZero();
+        assertThat(stats.getErrors()).isEqualTo(2);
+        assertThat(stats.getLatency().getCount()).isEqualTo(2);
+    }
+
+    @Test
+    void shouldReportConnects() throws IOException, HttpException {
+        RouteMetrics metrics = new RouteMetrics();
+        tracker.addListener(metrics);
+        ConnectionSocketFactory socketFactory = tracker.trackConnects(PlainConnectionSocketFactory.getSocketFactory());
+        InetSocketAddress address;
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            address = new InetSocketAddress(server.getInetAddress(), server.getLocalPort());
+            HttpContext context = plan("managed.test");
+            try (Socket socket = socketFactory.connectSocket(1000, socketFactory.createSocket(context),
+                    target.getHost(), address, null, context)) {
+                assertThat(socket.isConnected()).isTrue();
+            }
+        }
+        // Nothing listens on the port anymore
+        HttpContext context = plan("managed.test");
+        assertThatThrownBy(() -> socketFactory.connectSocket(1000, socketFactory.createSocket(context),
+                target.getHost(), address, null, context)).isInstanceOf(IOException.class);
+
+        RouteMetrics.Stats stats = metrics.get(target.getHost());
+        assertThat(stats.getConnectLatency().getCount()).isEqualTo(1);
+        assertThat(stats.getConnectErrors()).isEqualTo(1);
+        assertThat(stats.getRequests()).isZero();
+    }
+
+    private HttpContext plan(String host) throws HttpException {
+        HttpContext context = new BasicHttpContext();
+        routePlanner.determineRoute(new HttpHost(host), new HttpGet(), context);
+        return context;
+    }
+
+    private static HttpResponse response(int status) {
+        return new BasicHttpResponse(HttpVersion.HTTP_1_1, status, "");
+    }
+
+    @FunctionalInterface
+    private interface ResponseSupplier {
+        HttpResponse get() throws IOException, HttpException;
+    }
+
+    /**
+     * Connection answering requests with the response of the supplier.
+     */
+    private static final class FakeConnection implements HttpClientConnection {
+        private final ResponseSupplier responses;
+
+        FakeConnection(ResponseSupplier responses) {
+            this.responses = responses;
+        }
+
+        @Override
+        public boolean isResponseAvailable(int timeout) {
+            return true;
+        }
+
+        @Override
+        public void sendRequestHeader(HttpRequest request) {
+        }
+
+        @Override
+        public void sendRequestEntity(HttpEntityEnclosingRequest request) {
+        }
+
+        @Override
+        public HttpResponse receiveResponseHeader() throws IOException, HttpException {
+            return responses.get();
+        }
+
+        @Override
+        public void receiveResponseEntity(HttpResponse response) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public boolean isStale() {
+            return false;
+        }
+
+        @Override
+        public void setSocketTimeout(int timeout) {
+        }
+
+        @Override
+        public int getSocketTimeout() {
+            return 0;
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public HttpConnectionMetrics getMetrics() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package org.wikimedia.utils.http;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.absent;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.matching;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.entry;
+
+import java.io.IOException;
+import java.util.Date;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+
+import ru.lanwen.wiremock.ext.WiremockResolver;
+import ru.lanwen.wiremock.ext.WiremockResolver.Wiremock;
+import ru.lanwen.wiremock.ext.WiremockUriResolver;
+import ru.lanwen.wiremock.ext.WiremockUriResolver.WiremockUri;
+
+@ExtendWith({
+    WiremockResolver.class,
+    WiremockUriResolver.class
+})
+class RoutedHttpClientFactoryTest {
+
+    @Test
+    void shouldParseSettings() {
+        assertThat(RoutedHttpClientFactory.parseSettings("maxTotal=500,connectTimeout=2000"))
+                .containsEntry("maxTotal", 500L)
+                .containsEntry("connectTimeout", 2000L)
+                .containsEntry("maxPerRoute", 20L);
+        assertThat(RoutedHttpClientFactory.parseSettings("")).containsEntry("maxTotal", 200L);
+        assertThat(RoutedHttpClientFactory.maxPerTargetOverrides(
+                RoutedHttpClientFactory.parseSettings("maxPerTarget=10,maxPerTarget.http://proxy.local:9999=200")))
+                .containsExactly(entry(HttpHost.create("http://proxy.local:9999"), 200));
+    }
+
+    @Test
+    void shouldRejectInvalidSettings() {
+        assertThatThrownBy(() -> RoutedHttpClientFactory.parseSettings("maxTotl=500"))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> RoutedHttpClientFactory.parseSettings("maxTotal=many"))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> RoutedHttpClientFactory.parseSettings("maxTotal=500,maxTotal=600"))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> RoutedHttpClientFactory.parseSettings("maxTotal"))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> RoutedHttpClientFactory.parseSettings("dnsTtl=-1"))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> RoutedHttpClientFactory.parseSettings("dnsTtl=1000,dnsRefreshAfter=1000"))
+                .isInstanceOf(IllegalArgumentException.class);
+        // 3/4 of the TTL rounds down to 0
+        assertThatThrownBy(() -> RoutedHttpClientFactory.parseSettings("dnsTtl=1"))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThat(RoutedHttpClientFactory.parseSettings("dnsTtl=0,dnsRefreshAfter=1000")).containsEntry("dnsTtl", 0L);
+    }
+
+    @Test
+    void shouldBuildRoutedClient(@Wiremock WireMockServer server, @WiremockUri String baseUri) throws IOException {
+        server.stubFor(get(urlEqualTo("/my/resource"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withBody("<response>Some content</response>")));
+
+        RoutedHttpClientFactory factory = new RoutedHttpClientFactory("routed.test=" + baseUri, "maxPerTarget=10");
+        RouteMetrics metrics = new RouteMetrics();
+        factory.getRouteTracker().addListener(metrics);
+        try (CloseableHttpClient client = factory.build()) {
+            for (int i = 0; i < 3; i++) {
+                try (CloseableHttpResponse resp = client.execute(new HttpGet("http://routed.test/my/resource"))) {
+                    assertThat(EntityUtils.toString(resp.getEntity())).isEqualTo("<response>Some content</response>");
+                }
+            }
+        }
+        RouteTarget target = factory.getRoutePlanner().getRouteTable().lookup("routed.test").getTargets().get(0);
+        assertThat(metrics.get(target.getHost()).getRequests()).isEqualTo(3);
+    }
+
+    @Test
+    void shouldCacheResponsesOfCachedRoutes(@Wiremock WireMockServer server, @WiremockUri String baseUri) throws IOException {
+        server.stubFor(get(urlEqualTo("/my/resource"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Date", DateUtils.formatDate(new Date()))
+                        .withHeader("Cache-Control", "max-age=60")
+                        .withBody("<response>Some content</response>")));
+
+        RoutedHttpClientFactory factory = new RoutedHttpClientFactory(
+                "routed.test=" + baseUri + ",uncached.test=" + baseUri, "cacheOffHeap=1");
+        factory.setCachedRoutes("routed.test");
+        RouteMetrics metrics = new RouteMetrics();
+        factory.getRouteTracker().addListener(metrics);
+        try (CloseableHttpClient client = factory.build()) {
+            for (int i = 0; i < 3; i++) {
+                assertThat(fetch(client, "http://routed.test/my/resource")).isEqualTo("<response>Some content</response>");
+                assertThat(fetch(client, "http://uncached.test/my/resource")).isEqualTo("<response>Some content</response>");
+            }
+        }
+        server.verify(4, getRequestedFor(urlEqualTo("/my/resource")));
+        // Requests to routes that are not cached bypass the caching exec
+        server.verify(1, getRequestedFor(urlEqualTo("/my/resource")).withHeader("Via", matching(".*")));
+        server.verify(3, getRequestedFor(urlEqualTo("/my/resource")).withHeader("Via", absent()));
+        RouteResponseCache cache = factory.getResponseCache();
+        assertThat(cache.getHits()).isEqualTo(2);
+        assertThat(cache.getMisses()).isEqualTo(1);
+        // Responses served from the cache are not counted as requests to the target.
+        RouteTarget target = factory.getRoutePlanner().getRouteTable().lookup("routed.test").getTargets().get(0);
+        assertThat(metrics.get(target.getHost()).getRequests()).isEqualTo(4);
+    }
+
+    @Test
+    void shouldRevalidateCachedResponses(@Wiremock WireMockServer server, @WiremockUri String baseUri) throws IOException {
+        server.stubFor(get(urlEqualTo("/my/resource"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Date", DateUtils.formatDate(new Date()))
+                        .withHeader("Cache-Control", "max-age=0")
+                        .withHeader("ETag", "\"v1\"")
+                        .withBody("<response>Some content</response>")));
+        server.stubFor(get(urlEqualTo("/my/resource"))
+                .withHeader("If-None-Match", equalTo("\"v1\""))
+                .willReturn(aResponse()
+                        .withStatus(304)
+                        .withHeader("Date", DateUtils.formatDate(new Date()))
+                        .withHeader("ETag", "\"v1\"")));
+
+        RoutedHttpClientFactory factory = new RoutedHttpClientFactory("routed.test=" + baseUri, "");
+        factory.setCachedRoutes("routed.test");
+        try (CloseableHttpClient client = factory.build()) {
+            for (int i = 0; i < 2; i++) {
+                assertThat(fetch(client, "http://routed.test/my/resource")).isEqualTo("<response>Some content</response>");
+            }
+        }
+        server.verify(1, getRequestedFor(urlEqualTo("/my/resource")).withHeader("If-None-Match", equalTo("\"v1\"")));
+        assertThat(factory.getResponseCache().getValidated()).isEqualTo(1);
+    }
+
+    private static String fetch(CloseableHttpClient client, String uri) throws IOException {
+        try (CloseableHttpResponse resp = client.execute(new HttpGet(uri))) {
+            return EntityUtils.toString(resp.getEntity());
+        }
+    }
+}